@@ -0,0 +1,69 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * GET DATA: reading each of a number of data objects in turn.  Without extended APDUs, values longer than a
+ * short response are read with GET RESPONSE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+public class GetDataBenchmark extends SimulatorState {
+    /**
+     * Number of data objects in the master file
+     */
+    @Param({"1", "2", "4"})
+    public int objectCount;
+
+    /**
+     * Length of each value.  The largest does not fit a short APDU.
+     */
+    @Param({"16", "128", "400"})
+    public int valueSize;
+
+    /**
+     * true to read each value with one extended APDU, false to use short APDUs and GET RESPONSE
+     */
+    @Param({"true", "false"})
+    public boolean extended;
+
+    private CommandAPDU[] commands;
+    private CommandAPDU getResponse;
+    private int next;
+
+    /**
+     * Store the data objects, and build the commands that read them
+     */
+    @Setup(Level.Trial)
+    public void storeDataObjects() {
+        installApplet();
+        commands = new CommandAPDU[objectCount];
+        for (int i = 0; i < objectCount; i++) {
+            transmit(putData(dataObject(0xC1 + i, valueSize), true));
+            commands[i] = new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)(0xC1 + i)},
+                    extended ? EXTENDED_MAX_NE : SHORT_MAX_NE);
+        }
+        getResponse = new CommandAPDU(0x00, 0xC0, 0x00, 0x00, SHORT_MAX_NE);
+    }
+
+    @Benchmark
+    public ResponseAPDU getData() {
+        CommandAPDU command = commands[next];
+        next = (next + 1) % objectCount;
+        ResponseAPDU response = transmit(command);
+        while (response.getSW1() == 0x61) {
+            response = transmit(getResponse);
+        }
+        return response;
+    }
+}
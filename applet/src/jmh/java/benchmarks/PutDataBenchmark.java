@@ -0,0 +1,62 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * PUT DATA: rewriting each of a number of data objects in turn, so that both in-place updates and the
+ * staging and compaction of records are exercised.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+public class PutDataBenchmark extends SimulatorState {
+    /**
+     * Number of data objects in the master file
+     */
+    @Param({"1", "2", "4"})
+    public int objectCount;
+
+    /**
+     * Length of each value.  The largest does not fit a short APDU.
+     */
+    @Param({"16", "128", "400"})
+    public int valueSize;
+
+    /**
+     * true to send each data object in one extended APDU, false to chain short APDUs
+     */
+    @Param({"true", "false"})
+    public boolean extended;
+
+    private CommandAPDU[][] commands;
+    private int next;
+
+    /**
+     * Store the data objects, and build the commands that rewrite them
+     */
+    @Setup(Level.Trial)
+    public void storeDataObjects() {
+        installApplet();
+        commands = new CommandAPDU[objectCount][];
+        for (int i = 0; i < objectCount; i++) {
+            commands[i] = putData(dataObject(0xC1 + i, valueSize), extended);
+            transmit(commands[i]);
+        }
+    }
+
+    @Benchmark
+    public ResponseAPDU putData() {
+        CommandAPDU[] command = commands[next];
+        next = (next + 1) % objectCount;
+        return transmit(command);
+    }
+}
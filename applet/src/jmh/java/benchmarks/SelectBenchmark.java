@@ -0,0 +1,55 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * SELECT: the applet itself, which starts every transaction, and a DF by name and by path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+public class SelectBenchmark extends SimulatorState {
+    private static final byte[] DF_NAME = {(byte)0xA0, 0x00, 0x00, 0x01, 0x02, 0x03, 0x04};
+
+    private CommandAPDU selectApplet;
+    private CommandAPDU selectByName;
+    private CommandAPDU selectByPath;
+
+    /**
+     * Create a DF to select, and build the commands
+     */
+    @Setup(Level.Trial)
+    public void createFiles() {
+        installApplet();
+        byte[] fcp = {0x62, 0x10, (byte)0x83, 0x02, 0x10, 0x00, (byte)0x82, 0x01, 0x38, (byte)0x84, 0x07,
+                (byte)0xA0, 0x00, 0x00, 0x01, 0x02, 0x03, 0x04};
+        transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, fcp));
+
+        selectApplet = new CommandAPDU(0x00, 0xA4, 0x04, 0x00, APPLET_AID, SHORT_MAX_NE);
+        selectByName = new CommandAPDU(0x00, 0xA4, 0x04, 0x00, DF_NAME, SHORT_MAX_NE);
+        selectByPath = new CommandAPDU(0x00, 0xA4, 0x08, 0x00, new byte[] {0x10, 0x00}, SHORT_MAX_NE);
+    }
+
+    @Benchmark
+    public ResponseAPDU selectApplet() {
+        return transmit(selectApplet);
+    }
+
+    @Benchmark
+    public ResponseAPDU selectByName() {
+        return transmit(selectByName);
+    }
+
+    @Benchmark
+    public ResponseAPDU selectByPath() {
+        return transmit(selectByPath);
+    }
+}
@@ -0,0 +1,117 @@
+package benchmarks;
+
+import applet.IsoscelesApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Common state for the benchmarks: a freshly installed applet in jCardSim, and helpers to build commands.
+ * Commands are built ahead of time, so that only the simulator and applet are measured.
+ */
+public abstract class SimulatorState {
+    /**
+     * Applet AID, as used by the tests
+     */
+    protected static final byte[] APPLET_AID = {(byte)0x0F, (byte)0x49, (byte)0x53, (byte)0x4F, (byte)0x53, (byte)0x43,
+            (byte)0x45, (byte)0x4C, (byte)0x45, (byte)0x53, (byte)0x01};
+
+    /**
+     * Largest command data field of a short APDU
+     */
+    protected static final int SHORT_MAX_DATA = 255;
+
+    /**
+     * Ne requesting as many response bytes as a short or extended APDU can carry
+     */
+    protected static final int SHORT_MAX_NE = 256;
+    protected static final int EXTENDED_MAX_NE = 65536;
+
+    protected CardSimulator simulator;
+
+    /**
+     * Install and select a fresh applet.  Called first by each benchmark's setup, as JMH does not order
+     * setup methods across a class hierarchy.
+     */
+    protected void installApplet() {
+        simulator = new CardSimulator();
+        AID aid = AIDUtil.create(APPLET_AID);
+        byte[] installData = new byte[APPLET_AID.length + 3];
+        installData[0] = (byte)APPLET_AID.length;
+        System.arraycopy(APPLET_AID, 0, installData, 1, APPLET_AID.length);
+        simulator.installApplet(aid, IsoscelesApplet.class, installData, (short)0, (byte)installData.length);
+        simulator.selectApplet(aid);
+    }
+
+    /**
+     * Send a command, failing the benchmark if it is rejected
+     * @param command Command to send
+     * @return Response
+     */
+    protected ResponseAPDU transmit(CommandAPDU command) {
+        ResponseAPDU response = simulator.transmitCommand(command);
+        if (response.getSW() != 0x9000 && response.getSW1() != 0x61) {
+            throw new IllegalStateException(String.format("%s failed with %04X", command, response.getSW()));
+        }
+        return response;
+    }
+
+    /**
+     * Send a sequence of commands, such as a command chain
+     * @param commands Commands to send
+     * @return Response to the last command
+     */
+    protected ResponseAPDU transmit(CommandAPDU[] commands) {
+        ResponseAPDU response = null;
+        for (CommandAPDU command : commands) {
+            response = transmit(command);
+        }
+        return response;
+    }
+
+    /**
+     * Build a data object with a one byte tag and a deterministic value
+     * @param tag Tag
+     * @param valueSize Length of the value
+     * @return Encoded data object
+     */
+    protected static byte[] dataObject(int tag, int valueSize) {
+        byte[] header;
+        if (valueSize < 0x80) {
+            header = new byte[] {(byte)tag, (byte)valueSize};
+        } else if (valueSize <= 0xFF) {
+            header = new byte[] {(byte)tag, (byte)0x81, (byte)valueSize};
+        } else {
+            header = new byte[] {(byte)tag, (byte)0x82, (byte)(valueSize >> 8), (byte)valueSize};
+        }
+        byte[] tlv = Arrays.copyOf(header, header.length + valueSize);
+        for (int i = 0; i < valueSize; i++) {
+            tlv[header.length + i] = (byte)(tag + i);
+        }
+        return tlv;
+    }
+
+    /**
+     * Build a PUT DATA to the master file.  Without extended APDUs, longer data is sent as a command chain.
+     * @param data Command data
+     * @param extended true to send the data in a single extended APDU
+     * @return Commands to send
+     */
+    protected static CommandAPDU[] putData(byte[] data, boolean extended) {
+        if (extended || data.length <= SHORT_MAX_DATA) {
+            return new CommandAPDU[] {new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, data)};
+        }
+        List<CommandAPDU> chain = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += SHORT_MAX_DATA) {
+            int length = Math.min(SHORT_MAX_DATA, data.length - offset);
+            int cla = (offset + length < data.length) ? 0x10 : 0x00;
+            chain.add(new CommandAPDU(cla, 0xDB, 0x3F, 0x00, Arrays.copyOfRange(data, offset, offset + length)));
+        }
+        return chain.toArray(new CommandAPDU[0]);
+    }
+}
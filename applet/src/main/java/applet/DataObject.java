@@ -2,41 +2,242 @@ package applet;
 
 import javacard.framework.Util;
 
-import static applet.IsoscelesApplet.OFFSET_NONE;
-
+/**
+ * Layout of a data object record within a file's arena.
+ * <p>
+ * [Flags | Tag Length (1)] [Tag] [Capacity (2)] [Length (2)] [Value (Capacity)]
+ * <p>
+ * Capacity is the space reserved for the value, length is the size of the value currently stored.
+ * Tags are at most three bytes long, so the upper bits of the tag length byte are free to hold flags.
+ * <p>
+ * Among the flags are the access conditions of the data object, compiled when it is written from its own conditions
+ * and those of its file.  Each is a security state the terminal must have reached to read, or to write, the data
+ * object.  A command's missing security states are expressed in the same bits, so a single AND decides access.
+ */
 public class DataObject {
-    private byte[] _tag;
+    /**
+     * Flag: the value is stored PackBits compressed, and length is the size of the compressed form
+     */
+    public static final byte FLAG_COMPRESSED = (byte)0x80;
+
+    /**
+     * Access condition: reading requires a command protected by secure messaging
+     */
+    public static final byte ACCESS_READ_SECURE_MESSAGING = (byte)0x04;
+
+    /**
+     * Access condition: reading requires the terminal to have authenticated
+     */
+    public static final byte ACCESS_READ_AUTHENTICATED = (byte)0x08;
+
+    /**
+     * Access condition: writing requires a command protected by secure messaging
+     */
+    public static final byte ACCESS_WRITE_SECURE_MESSAGING = (byte)0x10;
+
+    /**
+     * Access condition: writing requires the terminal to have authenticated
+     */
+    public static final byte ACCESS_WRITE_AUTHENTICATED = (byte)0x20;
+
+    /**
+     * No access conditions: anyone may read and write
+     */
+    public static final byte ACCESS_NONE = 0;
+
+    /**
+     * Access conditions that apply to reading
+     */
+    public static final byte MASK_ACCESS_READ = (byte)0x0C;
+
+    /**
+     * Access conditions that apply to writing
+     */
+    public static final byte MASK_ACCESS_WRITE = (byte)0x30;
+
+    /**
+     * Every access condition
+     */
+    public static final byte MASK_ACCESS = (byte)0x3C;
+
+    /**
+     * No flags set
+     */
+    public static final byte FLAGS_NONE = 0;
+
+    /**
+     * Bits of the first header byte holding the tag length
+     */
+    private static final byte MASK_TAG_LENGTH = (byte)0x03;
+
+    /**
+     * Bits of the first header byte holding flags
+     */
+    private static final byte MASK_FLAGS = (byte)0xFC;
+
+    /**
+     * Size of the fixed part of the header: tag length, capacity and length
+     */
+    private static final short HEADER_FIXED_SIZE = 5;
+
+    /**
+     * Offset of the capacity field, relative to the end of the tag
+     */
+    private static final short OFFSET_CAPACITY = 0;
+
+    /**
+     * Offset of the length field, relative to the end of the tag
+     */
+    private static final short OFFSET_LENGTH = 2;
+
+    /**
+     * Offset of the value, relative to the end of the tag
+     */
+    private static final short OFFSET_VALUE = 4;
 
-    private byte[] _data;
+    /**
+     * Get the size of a record header
+     * @param tagLength Length of the tag
+     * @return Size of the header, in bytes
+     */
+    public static short getHeaderSize(short tagLength) {
+        return (short)(HEADER_FIXED_SIZE + tagLength);
+    }
+
+    /**
+     * Get the total size of a record, including its header
+     * @param arena Arena holding the record
+     * @param record Offset of the record
+     * @return Size of the record, in bytes
+     */
+    public static short getRecordSize(byte[] arena, short record) {
+        return (short)(getHeaderSize(getTagLength(arena, record)) + getCapacity(arena, record));
+    }
 
     /**
-     * Instantiates a new Data Object
+     * Write a record header
+     * @param arena Arena holding the record
+     * @param record Offset of the record
      * @param tagBuffer Tag input buffer
      * @param tagOffset Tag offset
      * @param tagLength Tag Length
+     * @param capacity Space reserved for the value
+     * @param length Length of the value
+     * @param flags Flags of the record
+     */
+    public static void writeHeader(byte[] arena, short record, byte[] tagBuffer, short tagOffset, short tagLength,
+                                   short capacity, short length, byte flags) {
+        arena[record] = (byte)(flags | tagLength);
+        Util.arrayCopy(tagBuffer, tagOffset, arena, (short)(record + 1), tagLength);
+        short tagEnd = getTagEnd(arena, record);
+        Util.setShort(arena, (short)(tagEnd + OFFSET_CAPACITY), capacity);
+        Util.setShort(arena, (short)(tagEnd + OFFSET_LENGTH), length);
+    }
+
+    /**
+     * Get the offset of the tag of a record
+     * @param record Offset of the record
+     * @return Offset of the first tag byte
+     */
+    public static short getTagOffset(short record) {
+        return (short)(record + 1);
+    }
+
+    /**
+     * Get the length of the tag of a record
+     * @param arena Arena holding the record
+     * @param record Offset of the record
+     * @return Length of the tag
+     */
+    public static short getTagLength(byte[] arena, short record) {
+        return (short)(arena[record] & MASK_TAG_LENGTH);
+    }
+
+    /**
+     * Get the flags of a record
+     * @param arena Arena holding the record
+     * @param record Offset of the record
+     * @return Flags of the record
+     */
+    public static byte getFlags(byte[] arena, short record) {
+        return (byte)(arena[record] & MASK_FLAGS);
+    }
+
+    /**
+     * Check whether a record's access conditions deny access
+     * @param arena Arena holding the record
+     * @param record Offset of the record
+     * @param denied Access conditions the command does not meet, of the access mode being checked
+     * @return true if the record may not be accessed
      */
-    public DataObject(byte[] tagBuffer, short tagOffset, short tagLength) {
-        _tag = new byte[tagLength];
-        Util.arrayCopy(tagBuffer, tagOffset, _tag, OFFSET_NONE, tagLength);
+    public static boolean isDenied(byte[] arena, short record, byte denied) {
+        return (arena[record] & denied) != 0;
     }
 
-    public byte[] getTag() {
-        return _tag;
+    /**
+     * Get the space reserved for the value of a record
+     * @param arena Arena holding the record
+     * @param record Offset of the record
+     * @return Capacity of the record
+     */
+    public static short getCapacity(byte[] arena, short record) {
+        return Util.getShort(arena, (short)(getTagEnd(arena, record) + OFFSET_CAPACITY));
+    }
+
+    /**
+     * Get the length of the value of a record
+     * @param arena Arena holding the record
+     * @param record Offset of the record
+     * @return Length of the value
+     */
+    public static short getLength(byte[] arena, short record) {
+        return Util.getShort(arena, (short)(getTagEnd(arena, record) + OFFSET_LENGTH));
     }
 
-    public byte[] getData() {
-        return _data;
+    /**
+     * Set the length of the value of a record
+     * @param arena Arena holding the record
+     * @param record Offset of the record
+     * @param length Length of the value
+     */
+    public static void setLength(byte[] arena, short record, short length) {
+        Util.setShort(arena, (short)(getTagEnd(arena, record) + OFFSET_LENGTH), length);
     }
 
-    public void setData(byte[] data) {
-        this._data = data;
+    /**
+     * Get the offset of the value of a record
+     * @param arena Arena holding the record
+     * @param record Offset of the record
+     * @return Offset of the first value byte
+     */
+    public static short getValueOffset(byte[] arena, short record) {
+        return (short)(getTagEnd(arena, record) + OFFSET_VALUE);
     }
 
-    public boolean tagEquals(byte[] buffer, short tagOffset, short tagLength) {
+    /**
+     * Compare the tag of a record
+     * @param arena Arena holding the record
+     * @param record Offset of the record
+     * @param buffer Tag buffer to compare against
+     * @param tagOffset Tag offset
+     * @param tagLength Tag length
+     * @return true if the tags are equal
+     */
+    public static boolean tagEquals(byte[] arena, short record, byte[] buffer, short tagOffset, short tagLength) {
         // Check the length first
-        if (tagLength != _tag.length) {
+        if (tagLength != getTagLength(arena, record)) {
             return false;
         }
-        return (Util.arrayCompare(buffer, tagOffset, _tag, OFFSET_NONE, tagLength) == 0) ? true : false;
+        return (Util.arrayCompare(buffer, tagOffset, arena, getTagOffset(record), tagLength) == 0) ? true : false;
+    }
+
+    /**
+     * Get the offset just past the tag of a record
+     * @param arena Arena holding the record
+     * @param record Offset of the record
+     * @return Offset of the capacity field
+     */
+    private static short getTagEnd(byte[] arena, short record) {
+        return (short)(record + 1 + getTagLength(arena, record));
     }
 }
@@ -0,0 +1,601 @@
+package applet;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Incremental parser for the data objects of a PUT DATA command.
+ * Command data is consumed chunk by chunk as it arrives from the APDU, and values are copied directly into the
+ * target file's arena, so the command never needs to be buffered in RAM.
+ * The parser state survives between commands, so a data object may span a chain of commands.
+ * <p>
+ * The data objects of a command, or of a whole command chain, are stored as one batch: either all of them or none.
+ * Each completed data object is journalled rather than published, and the journal is published at the end of the
+ * batch in a single transaction.  Values are written to staged records, which are invisible until published and so
+ * cost nothing in the commit buffer, except that an update to an existing record may be written in place, within the
+ * batch transaction, while the commit buffer has room for it.  A tear before the publishing transaction commits
+ * leaves the file as it was.
+ * <p>
+ * A data object with an empty value deletes the stored data object with its tag, if any, when the batch is published.
+ */
+public class DataObjectReceiver {
+    /**
+     * Largest header this parser accepts: a three byte tag and a three byte length
+     */
+    private static final short MAX_HEADER_SIZE = (short)(DerParser.MAX_TAG_SIZE + DerParser.MAX_LENGTH_SIZE);
+
+    /**
+     * Indicates that no record is being written, and the parser is reading a header
+     */
+    private static final short RECORD_NONE = ElementaryFile.RECORD_NONE;
+
+    /**
+     * Indicates that the parser is reading the access conditions requested for the next data object
+     */
+    private static final short RECORD_ACCESS = -2;
+
+    /**
+     * Wrong length: the batch holds more data objects than the journal.  See ISO/IEC 7816-4:2020(E) 5.6
+     */
+    private static final short ISO7816_SW_BATCH_TOO_LARGE = ISO7816.SW_WRONG_LENGTH;
+
+    /**
+     * Journal entries per data object a file may hold, so that a batch may delete and replace every data object
+     */
+    private static final byte JOURNAL_ENTRIES_PER_OBJECT = 2;
+
+    /**
+     * Journal entry: arena offset of the record
+     */
+    private static final byte JOURNAL_RECORD = 0;
+
+    /**
+     * Journal entry: length of the value
+     */
+    private static final byte JOURNAL_VALUE_LENGTH = 1;
+
+    private static final byte JOURNAL_ENTRY_SIZE = 2;
+
+    /**
+     * Journal value length of the deletion of a stored data object, whose entry holds its slot rather than a record.
+     * Compaction may move the record before the batch is published, while slots only change as it is published.
+     */
+    private static final short VALUE_DELETED_SLOT = -1;
+
+    /**
+     * Journal value length of a deletion whose entry holds a record with the tag to delete
+     */
+    private static final short VALUE_DELETED_RECORD = -2;
+
+    /**
+     * Indicates that a tag is not in the journal
+     */
+    private static final short ENTRY_NONE = -1;
+
+    /**
+     * Commit buffer kept free for record headers and for publishing the journal, beyond the in-place values
+     */
+    private static final short COMMIT_RESERVE = 256;
+
+    /**
+     * State: number of header bytes buffered so far
+     */
+    private static final byte STATE_HEADER_LENGTH = 0;
+
+    /**
+     * State: arena offset of the record receiving the value, or RECORD_NONE
+     */
+    private static final byte STATE_RECORD = 1;
+
+    /**
+     * State: length of the value being received
+     */
+    private static final byte STATE_VALUE_LENGTH = 2;
+
+    /**
+     * State: number of value bytes received so far
+     */
+    private static final byte STATE_VALUE_RECEIVED = 3;
+
+    /**
+     * State: set when this parser opened the transaction covering an in-place update
+     */
+    private static final byte STATE_TRANSACTION = 4;
+
+    /**
+     * State: set while a command chain is in progress
+     */
+    private static final byte STATE_CHAINING = 5;
+
+    /**
+     * State: number of data objects in the journal
+     */
+    private static final byte STATE_JOURNAL_COUNT = 6;
+
+    /**
+     * State: end of the last record written by the batch, or RECORD_NONE
+     */
+    private static final byte STATE_BATCH_END = 7;
+
+    /**
+     * State: number of slots the batch will take once published, less those its deletions will free
+     */
+    private static final byte STATE_NEW_SLOTS = 8;
+
+    /**
+     * State: set when the batch requested maintenance of the file
+     */
+    private static final byte STATE_MAINTENANCE = 9;
+
+    /**
+     * State: flags requested for the next data object of the batch
+     */
+    private static final byte STATE_FLAGS = 10;
+
+    /**
+     * State: logical channel the command chain arrives on
+     */
+    private static final byte STATE_CHANNEL = 11;
+
+    /**
+     * State: write access conditions the current command does not meet
+     */
+    private static final byte STATE_DENIED = 12;
+
+    private static final byte STATE_SIZE = 13;
+
+    /**
+     * Parser state, kept in RAM as it changes with every chunk
+     */
+    private final short[] _state;
+
+    /**
+     * Decoded header of the data object being parsed
+     */
+    private final short[] _cursor;
+
+    /**
+     * File receiving the data objects
+     */
+    private final Object[] _target;
+
+    /**
+     * Buffer holding the header bytes of the data object being parsed, which may arrive split across chunks
+     */
+    private final byte[] _header;
+
+    /**
+     * Offset of the header bytes within their buffer
+     */
+    private final short _headerOffset;
+
+    /**
+     * Data objects received in the batch, waiting to be published
+     */
+    private final short[] _journal;
+
+    /**
+     * Working RAM for reordering a file without a tag index, or null if files have a tag index
+     */
+    private final short[] _order;
+
+    /**
+     * Counts the data objects published and the compaction passes run
+     */
+    private final Statistics _statistics;
+
+    /**
+     * Allocates the parser state.  Called once, at install time.
+     * @param workspace Working RAM to reserve the header buffer from
+     * @param statistics Usage counters to record writes in
+     * @param maxObjects Largest number of data objects a file may hold, which sizes the journal
+     * @param indexed true if files index tags by hash, false if they are scanned and reordered
+     */
+    public DataObjectReceiver(Workspace workspace, Statistics statistics, short maxObjects, boolean indexed) {
+        _statistics = statistics;
+        if (!indexed) {
+            _order = JCSystem.makeTransientShortArray((short)(maxObjects * 2), JCSystem.CLEAR_ON_DESELECT);
+        } else {
+            _order = null;
+        }
+        _state = JCSystem.makeTransientShortArray(STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        _header = workspace.getBuffer();
+        _headerOffset = workspace.reserve(MAX_HEADER_SIZE);
+        _target = JCSystem.makeTransientObjectArray((short)1, JCSystem.CLEAR_ON_DESELECT);
+        _cursor = JCSystem.makeTransientShortArray(DerParser.CURSOR_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        _journal = JCSystem.makeTransientShortArray((short)(maxObjects * JOURNAL_ENTRIES_PER_OBJECT * JOURNAL_ENTRY_SIZE),
+                JCSystem.CLEAR_ON_DESELECT);
+        reset();
+    }
+
+    /**
+     * Prepare to parse a new command, or command chain
+     * @param target File receiving the data objects
+     * @param channel Logical channel the command arrived on
+     */
+    public void begin(ElementaryFile target, byte channel) {
+        reset();
+        _target[0] = target;
+        _state[STATE_CHANNEL] = channel;
+    }
+
+    /**
+     * Discard the parser state, unless a command chain is in progress on another logical channel.  Only one chain can
+     * be in progress at a time, as its staged records lie above the arena top until it is published.
+     * @param channel Logical channel of the command being processed, or being deselected
+     */
+    public void reset(byte channel) {
+        if (!isBusy(channel)) {
+            reset();
+        }
+    }
+
+    /**
+     * Check whether a command chain is in progress on a logical channel other than the given one
+     * @param channel Logical channel
+     * @return true if the chain belongs to another channel
+     */
+    public boolean isBusy(byte channel) {
+        return _state[STATE_CHAINING] != 0 && _state[STATE_CHANNEL] != channel;
+    }
+
+    /**
+     * Discard the parser state, abandoning any command chain in progress
+     */
+    public void reset() {
+        _target[0] = null;
+        _state[STATE_CHAINING] = 0;
+        _state[STATE_HEADER_LENGTH] = 0;
+        _state[STATE_RECORD] = RECORD_NONE;
+        _state[STATE_VALUE_LENGTH] = 0;
+        _state[STATE_VALUE_RECEIVED] = 0;
+        _state[STATE_TRANSACTION] = 0;
+        _state[STATE_JOURNAL_COUNT] = 0;
+        _state[STATE_BATCH_END] = RECORD_NONE;
+        _state[STATE_NEW_SLOTS] = 0;
+        _state[STATE_MAINTENANCE] = 0;
+        _state[STATE_FLAGS] = DataObject.FLAGS_NONE;
+        _state[STATE_DENIED] = DataObject.MASK_ACCESS_WRITE;
+    }
+
+    /**
+     * Set the write access conditions the current command does not meet.  Called for each command of a chain, as
+     * each is protected on its own.
+     * @param denied Write access conditions the command does not meet
+     */
+    public void setDenied(byte denied) {
+        _state[STATE_DENIED] = denied;
+    }
+
+    /**
+     * Check whether a command chain to a file is in progress on a logical channel
+     * @param target File receiving the data objects
+     * @param channel Logical channel the command arrived on
+     * @return true if the next command continues the chain
+     */
+    public boolean isChaining(ElementaryFile target, byte channel) {
+        return _state[STATE_CHAINING] != 0 && _target[0] == target && _state[STATE_CHANNEL] == channel;
+    }
+
+    /**
+     * Mark whether the command just received is followed by further commands in its chain
+     * @param chaining true if the command had the chaining bit set in its class byte
+     */
+    public void setChaining(boolean chaining) {
+        _state[STATE_CHAINING] = (short)(chaining ? 1 : 0);
+    }
+
+    /**
+     * Check whether the parser is between data objects
+     * @return true if every data object received so far is complete, and no flags await a data object
+     */
+    public boolean isIdle() {
+        return _state[STATE_HEADER_LENGTH] == 0 && _state[STATE_RECORD] == RECORD_NONE
+                && _state[STATE_FLAGS] == DataObject.FLAGS_NONE;
+    }
+
+    /**
+     * Abandon the batch.  In-place updates are rolled back, and staged records are never published.
+     */
+    public void abort() {
+        if (_state[STATE_TRANSACTION] != 0 && JCSystem.getTransactionDepth() != 0) {
+            JCSystem.abortTransaction();
+        }
+        reset();
+    }
+
+    /**
+     * Publish every data object of the batch, in a single transaction.  Called once the batch is complete.
+     * Orphaned space is then reclaimed, and the data objects reordered, if the batch requested maintenance, or enough
+     * orphaned space has built up.
+     */
+    public void commit() {
+        ElementaryFile target = (ElementaryFile)_target[0];
+        short count = _state[STATE_JOURNAL_COUNT];
+        if (count != 0 || _state[STATE_TRANSACTION] != 0) {
+            if (_state[STATE_TRANSACTION] == 0 && JCSystem.getTransactionDepth() == 0) {
+                JCSystem.beginTransaction();
+                _state[STATE_TRANSACTION] = 1;
+            }
+            // Deletions move slots, so every slot is resolved to its record before any entry is published
+            for (short i = 0; i < count; i++) {
+                short entry = (short)(i * JOURNAL_ENTRY_SIZE);
+                _journal[(short)(entry + JOURNAL_RECORD)] = getJournalRecord(target, i);
+                if (_journal[(short)(entry + JOURNAL_VALUE_LENGTH)] == VALUE_DELETED_SLOT) {
+                    _journal[(short)(entry + JOURNAL_VALUE_LENGTH)] = VALUE_DELETED_RECORD;
+                }
+            }
+            for (short i = 0; i < count; i++) {
+                short entry = (short)(i * JOURNAL_ENTRY_SIZE);
+                short record = _journal[(short)(entry + JOURNAL_RECORD)];
+                short valueLength = _journal[(short)(entry + JOURNAL_VALUE_LENGTH)];
+                if (valueLength == VALUE_DELETED_RECORD) {
+                    target.delete(record);
+                } else {
+                    target.endPut(record, valueLength, _cursor);
+                }
+            }
+            if (_state[STATE_TRANSACTION] != 0) {
+                JCSystem.commitTransaction();
+            }
+            _statistics.add(Statistics.COUNTER_OBJECTS_WRITTEN, count);
+        }
+
+        if (_state[STATE_MAINTENANCE] != 0 || target.isCompactionDue()) {
+            target.compact();
+            target.reorder(_order);
+            _statistics.add(Statistics.COUNTER_COMPACTIONS, (short)1);
+        }
+        reset();
+    }
+
+    /**
+     * Consume a chunk of command data
+     * @param buffer Buffer holding the chunk
+     * @param offset Offset of the chunk
+     * @param length Length of the chunk
+     * @param allowInPlace true if the data objects are certain to complete within this command
+     * @param last true if this chunk ends the batch
+     */
+    public void receive(byte[] buffer, short offset, short length, boolean allowInPlace, boolean last) {
+        ElementaryFile target = (ElementaryFile)_target[0];
+        short end = (short)(offset + length);
+
+        while (offset < end) {
+            if (_state[STATE_RECORD] == RECORD_NONE) {
+                short headerLength = _state[STATE_HEADER_LENGTH];
+
+                // Usually the whole header is within the chunk, and is decoded where it lies
+                if (headerLength == 0 && DerParser.ReadHeader(buffer, offset, end, _cursor) != DerParser.HEADER_INCOMPLETE) {
+                    offset += _cursor[DerParser.CURSOR_HEADER_SIZE];
+
+                    // A batch of one value rewritten at the same length needs neither journal nor transaction, only
+                    // an atomic copy, which must fit the commit buffer like any in-place update
+                    short valueLength = _cursor[DerParser.CURSOR_VALUE_LENGTH];
+                    if (last && valueLength != 0 && (short)(offset + valueLength) == end && _state[STATE_JOURNAL_COUNT] == 0
+                            && _state[STATE_FLAGS] == DataObject.FLAGS_NONE
+                            && valueLength <= (short)(JCSystem.getUnusedCommitCapacity() - COMMIT_RESERVE)
+                            && target.overwriteValue(buffer, _cursor[DerParser.CURSOR_TAG_OFFSET],
+                                _cursor[DerParser.CURSOR_TAG_SIZE], buffer, offset, valueLength, (byte)_state[STATE_DENIED])) {
+                        _statistics.add(Statistics.COUNTER_OBJECTS_WRITTEN, (short)1);
+                        return;
+                    }
+                    beginValue(target, buffer, allowInPlace);
+                    continue;
+                }
+
+                // Otherwise, accumulate the header a byte at a time until it is complete
+                if (headerLength == MAX_HEADER_SIZE) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                _header[(short)(_headerOffset + headerLength)] = buffer[offset];
+                offset++;
+                _state[STATE_HEADER_LENGTH] = ++headerLength;
+
+                if (DerParser.ReadHeader(_header, _headerOffset, (short)(_headerOffset + headerLength), _cursor) != DerParser.HEADER_INCOMPLETE) {
+                    beginValue(target, _header, allowInPlace);
+                }
+            } else if (_state[STATE_RECORD] == RECORD_ACCESS) {
+                // Access conditions may only be tightened beyond those of the file, and apply to the next data object
+                byte access = buffer[offset];
+                offset++;
+                if ((access & ~DataObject.MASK_ACCESS) != 0) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                _state[STATE_FLAGS] |= access;
+                _state[STATE_RECORD] = RECORD_NONE;
+            } else {
+                // Copy as much of the value as this chunk holds directly into the record
+                short remaining = (short)(_state[STATE_VALUE_LENGTH] - _state[STATE_VALUE_RECEIVED]);
+                short count = (short)(end - offset);
+                if (count > remaining) {
+                    count = remaining;
+                }
+                target.writeValue(_state[STATE_RECORD], _state[STATE_VALUE_RECEIVED], buffer, offset, count);
+                offset += count;
+                _state[STATE_VALUE_RECEIVED] += count;
+
+                if (_state[STATE_VALUE_RECEIVED] == _state[STATE_VALUE_LENGTH]) {
+                    endValue(target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start receiving the value of the data object whose header has just been decoded into the cursor.
+     * A transaction cannot outlive a command, so a value that may continue into the next command of a chain is
+     * always written to a staged record.  So is a value too large for the commit buffer, or one whose tag is already
+     * in the journal, which must not be overwritten before it is published.
+     * @param target File receiving the data object
+     * @param headerBuffer Buffer holding the decoded header
+     * @param allowInPlace true if the value may be updated in place
+     */
+    private void beginValue(ElementaryFile target, byte[] headerBuffer, boolean allowInPlace) {
+        short valueLength = _cursor[DerParser.CURSOR_VALUE_LENGTH];
+        short tagOffset = _cursor[DerParser.CURSOR_TAG_OFFSET];
+        short tagLength = _cursor[DerParser.CURSOR_TAG_SIZE];
+
+        // Nothing may be written to the file without meeting its write conditions, not even a request
+        if ((target.getAccessConditions() & _state[STATE_DENIED]) != 0) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        // Virtual data objects are never stored.  Those that may be written are requests applying to the batch, or to
+        // the next data object, which may each be given once for it.  Only the access conditions request has a value.
+        byte flags = (byte)_state[STATE_FLAGS];
+        if (IsoscelesApplet.IsReservedTag(headerBuffer, tagOffset, tagLength)) {
+            _state[STATE_HEADER_LENGTH] = 0;
+            if (Util.arrayCompare(headerBuffer, tagOffset, IsoscelesApplet.TAG_DO_ACCESS, (short)0, tagLength) == 0
+                    && valueLength == 1 && (flags & DataObject.MASK_ACCESS) == 0) {
+                _state[STATE_RECORD] = RECORD_ACCESS;
+            } else if (valueLength != 0) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            } else if (Util.arrayCompare(headerBuffer, tagOffset, IsoscelesApplet.TAG_DO_MAINTENANCE,
+                    (short)0, tagLength) == 0 && flags == DataObject.FLAGS_NONE) {
+                _state[STATE_MAINTENANCE] = 1;
+            } else if (Util.arrayCompare(headerBuffer, tagOffset, IsoscelesApplet.TAG_DO_COMPRESSED,
+                    (short)0, tagLength) == 0 && (flags & DataObject.FLAG_COMPRESSED) == 0) {
+                _state[STATE_FLAGS] |= DataObject.FLAG_COMPRESSED;
+            } else {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            return;
+        }
+
+        // Constructed values are indexed as they are stored, so cannot be compressed
+        if ((flags & DataObject.FLAG_COMPRESSED) != 0 && DerParser.IsConstructed(headerBuffer[tagOffset])) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        _state[STATE_FLAGS] = DataObject.FLAGS_NONE;
+
+        // The write conditions of the data object being replaced must be met too.  Those of the file are compiled
+        // into the new record, so reading it later takes a single check.
+        short slot = target.findSlot(headerBuffer, tagOffset, tagLength);
+        if (slot != ElementaryFile.SLOT_NONE && target.isDenied(slot, (byte)_state[STATE_DENIED])) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        _state[STATE_HEADER_LENGTH] = 0;
+
+        // Whether the data object will exist at this point of the batch depends on its latest journal entry, if any
+        short journalled = findJournalled(target, headerBuffer, tagOffset, tagLength);
+        boolean present = (journalled == ENTRY_NONE) ? slot != ElementaryFile.SLOT_NONE
+                : _journal[(short)(journalled * JOURNAL_ENTRY_SIZE + JOURNAL_VALUE_LENGTH)] >= 0;
+
+        // An empty value deletes the data object, whether stored or written earlier in the batch, once the batch is
+        // published.  It takes no space, and its slot may be taken by a later data object of the batch.
+        if (valueLength == 0) {
+            if (flags != DataObject.FLAGS_NONE) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            if (present) {
+                if (journalled == ENTRY_NONE) {
+                    journal(slot, VALUE_DELETED_SLOT);
+                } else {
+                    journal(getJournalRecord(target, journalled), VALUE_DELETED_RECORD);
+                }
+                _state[STATE_NEW_SLOTS]--;
+            }
+            return;
+        }
+        flags |= target.getAccessConditions();
+
+        // Every new tag in the batch must have a slot to go to when it is published
+        if (!present) {
+            if (_state[STATE_NEW_SLOTS] >= target.getFreeSlotCount()) {
+                ISOException.throwIt(ISO7816.SW_FILE_FULL);
+            }
+            _state[STATE_NEW_SLOTS]++;
+        }
+
+        if (allowInPlace) {
+            allowInPlace = journalled == ENTRY_NONE
+                    && valueLength <= (short)(JCSystem.getUnusedCommitCapacity() - COMMIT_RESERVE);
+        }
+        short record = target.beginPut(headerBuffer, tagOffset, tagLength, valueLength, flags, allowInPlace,
+                _state[STATE_BATCH_END]);
+        short recordEnd = target.getRecordEnd(record);
+        if (recordEnd > _state[STATE_BATCH_END]) {
+            _state[STATE_BATCH_END] = recordEnd;
+        }
+
+        // In-place updates land together with the rest of the batch, or not at all
+        if (target.isPublished(record) && JCSystem.getTransactionDepth() == 0) {
+            JCSystem.beginTransaction();
+            _state[STATE_TRANSACTION] = 1;
+        }
+
+        _state[STATE_RECORD] = record;
+        _state[STATE_VALUE_LENGTH] = valueLength;
+        _state[STATE_VALUE_RECEIVED] = 0;
+    }
+
+    /**
+     * Journal the data object whose value has been fully received, to be published with the rest of the batch
+     * @param target File receiving the data object
+     */
+    private void endValue(ElementaryFile target) {
+        // A compressed value must expand cleanly before it can be stored
+        short record = _state[STATE_RECORD];
+        byte[] arena = target.getArena();
+        if ((DataObject.getFlags(arena, record) & DataObject.FLAG_COMPRESSED) != 0
+                && PackBits.GetExpandedLength(arena, DataObject.getValueOffset(arena, record),
+                    _state[STATE_VALUE_LENGTH]) == PackBits.LENGTH_INVALID) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        journal(record, _state[STATE_VALUE_LENGTH]);
+        _state[STATE_RECORD] = RECORD_NONE;
+    }
+
+    /**
+     * Add an entry to the journal
+     * @param record Arena offset of the record
+     * @param valueLength Length of the value, VALUE_DELETED_SLOT or VALUE_DELETED_RECORD
+     */
+    private void journal(short record, short valueLength) {
+        short count = _state[STATE_JOURNAL_COUNT];
+        short entry = (short)(count * JOURNAL_ENTRY_SIZE);
+        if (entry == (short)_journal.length) {
+            ISOException.throwIt(ISO7816_SW_BATCH_TOO_LARGE);
+        }
+        _journal[(short)(entry + JOURNAL_RECORD)] = record;
+        _journal[(short)(entry + JOURNAL_VALUE_LENGTH)] = valueLength;
+        _state[STATE_JOURNAL_COUNT] = ++count;
+    }
+
+    /**
+     * Get the record holding the tag of a journal entry
+     * @param target File receiving the data objects
+     * @param index Index of the journal entry
+     * @return Arena offset of the record
+     */
+    private short getJournalRecord(ElementaryFile target, short index) {
+        short entry = (short)(index * JOURNAL_ENTRY_SIZE);
+        short record = _journal[(short)(entry + JOURNAL_RECORD)];
+        if (_journal[(short)(entry + JOURNAL_VALUE_LENGTH)] == VALUE_DELETED_SLOT) {
+            return target.getRecord(record);
+        }
+        return record;
+    }
+
+    /**
+     * Find the latest entry for a tag that has already been received in this batch
+     * @param target File receiving the data objects
+     * @param buffer Buffer holding the tag
+     * @param tagOffset Offset of the tag
+     * @param tagLength Length of the tag
+     * @return Index of the latest journal entry with the tag, or ENTRY_NONE if it is not in the journal
+     */
+    private short findJournalled(ElementaryFile target, byte[] buffer, short tagOffset, short tagLength) {
+        byte[] arena = target.getArena();
+        for (short i = (short)(_state[STATE_JOURNAL_COUNT] - 1); i >= 0; i--) {
+            if (DataObject.tagEquals(arena, getJournalRecord(target, i), buffer, tagOffset, tagLength)) {
+                return i;
+            }
+        }
+        return ENTRY_NONE;
+    }
+}
@@ -1,13 +1,23 @@
 package applet;
 
-public class DedicatedFile extends ElementaryFile {
-    public static byte MAX_CHILDREN = 0x08;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+import static applet.IsoscelesApplet.OFFSET_NONE;
 
+public class DedicatedFile extends ElementaryFile {
     /**
      * Array of all the child files this file contains
      */
     public ElementaryFile[] _children;
 
+    /**
+     * Number of child files.  Children are added in order, so this is also the next open entry.
+     */
+    private short _childCount;
+
     /**
      * Application Name
      */
@@ -17,15 +27,20 @@ public class DedicatedFile extends ElementaryFile {
      * Initialize a new Dedicated File array
      *
      * @param maxObjects Maximum number of objects this DF can contain
+     * @param arenaSize Size of the storage arena for data objects, in bytes
+     * @param maxNodes Maximum number of nested data objects indexed within constructed data objects
+     * @param maxChildren Maximum number of files this DF can contain
      * @param fileIdentifier   File identifier for this DF
      * @param applicationName Application Name [AID] for this DF
+     * @param indexed true to index tags by hash, false to scan the slots, most read first, and save the index
      */
-    public DedicatedFile(short maxObjects, byte[] fileIdentifier, byte[] applicationName) {
-        super(maxObjects, (short)0x00, fileIdentifier);
+    public DedicatedFile(short maxObjects, short arenaSize, short maxNodes, short maxChildren, byte[] fileIdentifier,
+                         byte[] applicationName, boolean indexed) {
+        super(maxObjects, (short)0x00, arenaSize, maxNodes, fileIdentifier, indexed);
         if (applicationName != null) {
             _applicationName = applicationName;
         }
-        _children = new ElementaryFile[MAX_CHILDREN];
+        _children = new ElementaryFile[maxChildren];
     }
 
     /**
@@ -35,4 +50,105 @@ public class DedicatedFile extends ElementaryFile {
     public byte[] GetName() {
         return this._applicationName;
     }
+
+    /**
+     * Compare the name of this dedicated file
+     * @param buffer Buffer holding the name to compare against
+     * @param offset Offset of the name
+     * @param length Length of the name
+     * @return true if the names are equal
+     */
+    public boolean nameEquals(byte[] buffer, short offset, short length) {
+        if (_applicationName == null || length != (short)_applicationName.length) {
+            return false;
+        }
+        return Util.arrayCompare(buffer, offset, _applicationName, OFFSET_NONE, length) == 0;
+    }
+
+    /**
+     * Add a child file
+     * @param child File to add
+     */
+    public void addChild(ElementaryFile child) {
+        if (_childCount == (short)_children.length) {
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+
+        boolean ownTransaction = JCSystem.getTransactionDepth() == 0;
+        if (ownTransaction) {
+            JCSystem.beginTransaction();
+        }
+        child._parent = this;
+        _children[_childCount] = child;
+        _childCount++;
+        if (ownTransaction) {
+            JCSystem.commitTransaction();
+        }
+    }
+
+    /**
+     * Find a child file by file identifier
+     * @param buffer Buffer holding the file identifier
+     * @param offset Offset of the file identifier (2 bytes)
+     * @return Child file, or null if there is none
+     */
+    public ElementaryFile findChild(byte[] buffer, short offset) {
+        for (short i = 0; i < _childCount; i++) {
+            if (_children[i].fileIdentifierEquals(buffer, offset)) {
+                return _children[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a dedicated file by name, searching this file and everything beneath it in depth-first order.
+     * The tree is walked through the parent links rather than by recursion, keeping stack use constant.
+     * @param buffer Buffer holding the name
+     * @param offset Offset of the name
+     * @param length Length of the name
+     * @return Dedicated file, or null if there is none
+     */
+    public DedicatedFile findByName(byte[] buffer, short offset, short length) {
+        if (nameEquals(buffer, offset, length)) {
+            return this;
+        }
+
+        DedicatedFile directory = this;
+        short index = 0;
+        while (true) {
+            if (index < directory._childCount) {
+                ElementaryFile child = directory._children[index];
+                if (child instanceof DedicatedFile) {
+                    DedicatedFile childDirectory = (DedicatedFile)child;
+                    if (childDirectory.nameEquals(buffer, offset, length)) {
+                        return childDirectory;
+                    }
+                    directory = childDirectory;
+                    index = 0;
+                } else {
+                    index++;
+                }
+            } else if (directory == this) {
+                return null;
+            } else {
+                // Resume with the next sibling
+                index = (short)(directory._parent.indexOf(directory) + 1);
+                directory = directory._parent;
+            }
+        }
+    }
+
+    /**
+     * Get the position of a child file
+     * @param child Child file
+     * @return Index of the child within _children
+     */
+    private short indexOf(ElementaryFile child) {
+        short index = 0;
+        while (_children[index] != child) {
+            index++;
+        }
+        return index;
+    }
 }
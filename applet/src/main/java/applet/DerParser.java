@@ -1,59 +1,237 @@
 package applet;
 
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
 import javacard.framework.Util;
 
+/**
+ * Allocation-free BER-TLV decoder, following the encoding rules of ISO/IEC 7816-4:2020(E) 6.3.
+ * Each call reads a tag and length once, checking every byte against the limit of the input,
+ * and leaves the decoded fields in a caller-provided cursor so that nothing needs to be re-read.
+ * Headers are encoded with the shortest length form.
+ */
 public class DerParser {
     private static final byte MASK_TAG_MULTIBYTE = (byte)0x1F;
-    private static final byte MASK_TAG_THREE_BYTE = (byte)0x80;
+    private static final byte MASK_TAG_MORE_BYTES = (byte)0x80;
+    private static final byte MASK_TAG_CONSTRUCTED = (byte)0x20;
 
-    private static final byte MASK_LENGTH_TWO_BYTE = (byte)0x80;
+    private static final byte MASK_LENGTH_LONG_FORM = (byte)0x80;
+    private static final byte LENGTH_ONE_BYTE = (byte)0x81;
+    private static final byte LENGTH_TWO_BYTE = (byte)0x82;
 
-    private static final byte LEN_SINGLE_BYTE = (byte)0x01;
-    private static final byte LEN_TWO_BYTE = (byte)0x02;
+    /**
+     * Tags longer than this are not supported
+     */
+    public static final short MAX_TAG_SIZE = 3;
+
+    /**
+     * Lengths longer than this (0x82 plus two bytes) are not supported
+     */
+    public static final short MAX_LENGTH_SIZE = 3;
+
+    /**
+     * Largest length encoded in a single length byte
+     */
+    private static final short MAX_SHORT_FORM_LENGTH = 0x7F;
+
+    /**
+     * Largest length encoded with LENGTH_ONE_BYTE
+     */
+    private static final short MAX_ONE_BYTE_LENGTH = 0xFF;
+
+    /**
+     * Returned by ReadHeader when the input ends before the header does
+     */
+    public static final short HEADER_INCOMPLETE = 0;
+
+    /**
+     * Cursor: offset of the first tag byte
+     */
+    public static final byte CURSOR_TAG_OFFSET = 0;
+
+    /**
+     * Cursor: size of the tag, in bytes
+     */
+    public static final byte CURSOR_TAG_SIZE = 1;
+
+    /**
+     * Cursor: value of the tag.  Only meaningful for tags of up to two bytes, longer tags are compared by offset.
+     */
+    public static final byte CURSOR_TAG = 2;
+
+    /**
+     * Cursor: size of the tag and length together, in bytes
+     */
+    public static final byte CURSOR_HEADER_SIZE = 3;
+
+    /**
+     * Cursor: offset of the first value byte
+     */
+    public static final byte CURSOR_VALUE_OFFSET = 4;
+
+    /**
+     * Cursor: length of the value, in bytes
+     */
+    public static final byte CURSOR_VALUE_LENGTH = 5;
+
+    /**
+     * Number of entries in a cursor
+     */
+    public static final byte CURSOR_SIZE = 6;
+
+    /**
+     * Check whether a tag denotes a constructed data object, which contains other data objects
+     * @param first First byte of the tag
+     * @return true if the data object is constructed
+     */
+    public static boolean IsConstructed(byte first) {
+        return (first & MASK_TAG_CONSTRUCTED) == MASK_TAG_CONSTRUCTED;
+    }
+
+    /**
+     * Read a tag
+     * @param buffer Source buffer to read
+     * @param offset Offset of the tag
+     * @param limit Offset just past the last readable byte
+     * @param cursor Receives the tag offset, size and value
+     * @return Size of the tag, or HEADER_INCOMPLETE if the input ends first
+     */
+    public static short ReadTag(byte[] buffer, short offset, short limit, short[] cursor) {
+        if (offset >= limit) {
+            return HEADER_INCOMPLETE;
+        }
+
+        // 0x00 and 0xFF are padding, and never start a tag
+        byte first = buffer[offset];
+        if (first == (byte)0x00 || first == (byte)0xFF) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
 
-    private static final byte LEN_THREE_BYTE = (byte)0x03;
+        // Subsequent bytes follow when the tag number bits are all set, and continue while bit 8 is set
+        short size = 1;
+        if ((first & MASK_TAG_MULTIBYTE) == MASK_TAG_MULTIBYTE) {
+            byte next;
+            do {
+                if (size == MAX_TAG_SIZE) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                } else if ((short)(offset + size) >= limit) {
+                    return HEADER_INCOMPLETE;
+                }
+                next = buffer[(short)(offset + size)];
+                size++;
+            } while ((next & MASK_TAG_MORE_BYTES) == MASK_TAG_MORE_BYTES);
+        }
+
+        cursor[CURSOR_TAG_OFFSET] = offset;
+        cursor[CURSOR_TAG_SIZE] = size;
+        cursor[CURSOR_TAG] = (size == 1)
+                ? (short)(first & 0xFF)
+                : Util.makeShort(first, buffer[(short)(offset + 1)]);
+        return size;
+    }
 
     /**
-     * Parses a variable-length tag ASN.1 DER tag, returning the length in bytes
-     * @param srcBuffer Source buffer to read
-     * @param srcOffset Source buffer offset
-     * @return Size of the tag
+     * Read a tag and length
+     * @param buffer Source buffer to read
+     * @param offset Offset of the tag
+     * @param limit Offset just past the last readable byte
+     * @param cursor Receives the tag, header size, value offset and value length
+     * @return Size of the header, or HEADER_INCOMPLETE if the input ends first
      */
-    public static short ReadTagSize (byte[] srcBuffer, short srcOffset) {
-        // Short tags will not have all 5 bytes set
-        if ((srcBuffer[srcOffset] & MASK_TAG_MULTIBYTE) != MASK_TAG_MULTIBYTE) {
-            return LEN_SINGLE_BYTE;
-        } else if ((srcBuffer[(short)(srcOffset + 1)] & MASK_TAG_THREE_BYTE) == MASK_TAG_THREE_BYTE) {
-            return LEN_THREE_BYTE;
+    public static short ReadHeader(byte[] buffer, short offset, short limit, short[] cursor) {
+        short tagSize = ReadTag(buffer, offset, limit, cursor);
+        if (tagSize == HEADER_INCOMPLETE) {
+            return HEADER_INCOMPLETE;
+        }
+
+        short lengthOffset = (short)(offset + tagSize);
+        if (lengthOffset >= limit) {
+            return HEADER_INCOMPLETE;
+        }
+
+        // Short form, or long form with one or two subsequent bytes
+        byte first = buffer[lengthOffset];
+        short lengthSize = 1;
+        short length = 0;
+        if ((first & MASK_LENGTH_LONG_FORM) == 0) {
+            length = first;
+        } else if (first == LENGTH_ONE_BYTE) {
+            lengthSize = 2;
+        } else if (first == LENGTH_TWO_BYTE) {
+            lengthSize = 3;
+        } else {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
         }
-        return LEN_TWO_BYTE;
+
+        if ((short)(lengthOffset + lengthSize) > limit) {
+            return HEADER_INCOMPLETE;
+        } else if (lengthSize == 2) {
+            length = (short)(buffer[(short)(lengthOffset + 1)] & 0xFF);
+        } else if (lengthSize == 3) {
+            length = Util.getShort(buffer, (short)(lengthOffset + 1));
+            if (length < 0) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+        }
+
+        short headerSize = (short)(tagSize + lengthSize);
+        cursor[CURSOR_HEADER_SIZE] = headerSize;
+        cursor[CURSOR_VALUE_OFFSET] = (short)(offset + headerSize);
+        cursor[CURSOR_VALUE_LENGTH] = length;
+        return headerSize;
     }
 
     /**
-     * Read the size of a variable-length ASN.1 DER field
-     * @param srcBuffer Source buffer to read
-     * @param srcOffset Source buffer offset
-     * @return Size of the length
+     * Read a complete data object, which must lie entirely within the input
+     * @param buffer Source buffer to read
+     * @param offset Offset of the tag
+     * @param limit Offset just past the last readable byte
+     * @param cursor Receives the tag, header size, value offset and value length
+     * @return Offset just past the value
      */
-    public static short ReadLengthSize (byte[] srcBuffer, short srcOffset) {
-        if (MASK_LENGTH_TWO_BYTE == (srcBuffer[srcOffset] & MASK_LENGTH_TWO_BYTE)) {
-            return LEN_TWO_BYTE;
+    public static short ReadTlv(byte[] buffer, short offset, short limit, short[] cursor) {
+        if (ReadHeader(buffer, offset, limit, cursor) == HEADER_INCOMPLETE) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
         }
-        return LEN_SINGLE_BYTE;
+        short end = (short)(cursor[CURSOR_VALUE_OFFSET] + cursor[CURSOR_VALUE_LENGTH]);
+        if (end < 0 || end > limit) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        return end;
     }
 
     /**
-     * Read the length of an ASN.1 DER length tag (up to two bytes)
-     * @param srcBuffer Source buffer to read
-     * @param srcOffset Source buffer offset
-     * @return Length of the ASN.1 DER tag
+     * Get the number of bytes WriteHeader encodes a length in
+     * @param length Length of the value
+     * @return Size of the encoded length
      */
-    public static short ReadTagLength(byte[] srcBuffer, short srcOffset) {
-        short size = ReadLengthSize(srcBuffer, srcOffset);
+    public static short GetLengthSize(short length) {
+        if (length > MAX_ONE_BYTE_LENGTH) {
+            return 3;
+        }
+        return (length > MAX_SHORT_FORM_LENGTH) ? (short)2 : (short)1;
+    }
 
-        if (size == LEN_SINGLE_BYTE) {
-            return Util.makeShort((byte)0x00, srcBuffer[srcOffset]);
+    /**
+     * Write a tag and length
+     * @param buffer Destination buffer
+     * @param offset Destination offset
+     * @param tagBuffer Buffer holding the tag
+     * @param tagOffset Offset of the tag
+     * @param tagLength Length of the tag
+     * @param length Length of the value
+     * @return Offset just past the header
+     */
+    public static short WriteHeader(byte[] buffer, short offset, byte[] tagBuffer, short tagOffset, short tagLength,
+                                    short length) {
+        offset = Util.arrayCopyNonAtomic(tagBuffer, tagOffset, buffer, offset, tagLength);
+        if (length > MAX_ONE_BYTE_LENGTH) {
+            buffer[offset++] = LENGTH_TWO_BYTE;
+            return Util.setShort(buffer, offset, length);
+        } else if (length > MAX_SHORT_FORM_LENGTH) {
+            buffer[offset++] = LENGTH_ONE_BYTE;
         }
-        return Util.makeShort(srcBuffer[srcOffset], srcBuffer[(short)(srcOffset + 1)]);
+        buffer[offset++] = (byte)length;
+        return offset;
     }
 }
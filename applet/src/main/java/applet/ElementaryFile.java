@@ -3,6 +3,7 @@ package applet;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
+import javacard.framework.Util;
 
 import static applet.IsoscelesApplet.OFFSET_NONE;
 
@@ -13,55 +14,425 @@ public class ElementaryFile {
     public static final short SLOT_NONE = -1;
 
     /**
-     * Array of all the data objects contained in a dedicated file
+     * Used to indicate a null/unknown record
      */
-    public DataObject[] _dataObjects;
+    public static final short RECORD_NONE = -1;
+
+    /**
+     * Used to indicate a null/unknown structure node, or the data object itself as the parent of a node
+     */
+    public static final short NODE_NONE = -1;
+
+    /**
+     * Largest lookup count kept for a slot
+     */
+    private static final short HITS_MAX = 0x7FFF;
+
+    /**
+     * Most bytes moved in a single transaction while compacting, so that a move fits the commit buffer
+     */
+    private static final short MOVE_CHUNK_SIZE = 256;
+
+    /**
+     * Commit capacity kept free during a move for the progress marker and offset updates
+     */
+    private static final short MOVE_RESERVE = 64;
+
+    /**
+     * Length of the storage status written by writeStatus
+     */
+    public static final short STATUS_SIZE = 12;
+
+    /**
+     * Node: slot of the constructed data object the node belongs to
+     */
+    private static final byte NODE_SLOT = 0;
+
+    /**
+     * Node: index of the enclosing node, or NODE_NONE for a direct child of the data object
+     */
+    private static final byte NODE_PARENT = 1;
+
+    /**
+     * Node: offset of the tag, relative to the start of the data object's value
+     */
+    private static final byte NODE_TAG_OFFSET = 2;
+
+    /**
+     * Node: size of the tag
+     */
+    private static final byte NODE_TAG_SIZE = 3;
+
+    /**
+     * Node: offset of the value, relative to the start of the data object's value
+     */
+    private static final byte NODE_VALUE_OFFSET = 4;
+
+    /**
+     * Node: length of the value
+     */
+    private static final byte NODE_VALUE_LENGTH = 5;
+
+    private static final byte NODE_SIZE = 6;
+
+    /**
+     * Arena holding all the data object records of this file, laid out contiguously.  See DataObject.
+     */
+    private byte[] _arena;
+
+    /**
+     * Offset of the first unused byte in the arena.  New records are appended here.
+     */
+    private short _arenaTop;
+
+    /**
+     * Bytes below _arenaTop held by records that are no longer referenced.  Reclaimed by compaction.
+     */
+    private short _orphanedBytes;
+
+    /**
+     * Slot of the record being moved by compaction, or SLOT_NONE.  Until the move completes, the bytes below
+     * _moveDone are at _moveTarget and the rest are still at the record's offset.
+     */
+    private short _moveSlot = SLOT_NONE;
+
+    /**
+     * Arena offset the record being moved is copied to
+     */
+    private short _moveTarget;
+
+    /**
+     * Size of the record being moved
+     */
+    private short _moveSize;
+
+    /**
+     * Bytes of the record being moved that have been copied so far
+     */
+    private short _moveDone;
+
+    /**
+     * Offset table: arena offset of the record held by each data object slot
+     */
+    private short[] _recordOffsets;
+
+    /**
+     * Open-addressing hash index from tags to data object slots.
+     * Each entry holds the slot number plus one, so that zero marks an empty entry.  Null if the file has no index.
+     */
+    private short[] _tagIndex;
+
+    /**
+     * Number of lookups that found each slot since the last reorder, for files without a tag index.  Kept in RAM, as
+     * it changes with every lookup.
+     */
+    private short[] _hits;
+
+    /**
+     * Orphaned bytes at which the arena is compacted at the end of a PUT DATA, rather than when space runs out
+     */
+    private short _compactionThreshold;
+
+    /**
+     * Number of data objects stored in this file.  Slots are kept contiguous, the last one moving into any slot freed
+     * by a deletion, so this is also the next open slot.
+     */
+    private short _dataObjectCount;
+
+    /**
+     * Structure index of constructed data objects: one node for every nested data object, NODE_SIZE entries each.
+     * Nodes are computed once, when a constructed data object is written, and the nodes of a data object are
+     * always contiguous.  Offsets are relative to the data object's value, so they survive compaction.
+     */
+    private short[] _nodes;
+
+    /**
+     * Number of nodes in use
+     */
+    private short _nodeCount;
 
     /**
      * File identifier (2 bytes) for this dedicated file
      */
     private byte[] _fileIdentifier;
 
+    /**
+     * Serialized file control information, sent in response to SELECT
+     */
+    private byte[] _fci;
+
+    /**
+     * Access conditions of the file, compiled into every data object written to it
+     */
+    private byte _access;
+
+    /**
+     * Dedicated file containing this file, or null for the master file
+     */
+    protected DedicatedFile _parent;
+
     /**
      * Initialize a new Dedicated File array
      * @param maxObjects Maximum number of objects this EF can contain
      * @param maxChildren Maximum number of children this EF can have.  Must be zero.
+     * @param arenaSize Size of the storage arena for data objects, in bytes
+     * @param maxNodes Maximum number of nested data objects indexed within constructed data objects
      * @param fileIdentifier Filename for this DF
+     * @param indexed true to index tags by hash, false to scan the slots, most read first, and save the index
      */
-    public ElementaryFile (short maxObjects, short maxChildren, byte[] fileIdentifier) {
+    public ElementaryFile (short maxObjects, short maxChildren, short arenaSize, short maxNodes, byte[] fileIdentifier,
+                           boolean indexed) {
         if (maxChildren != 0) {
             ISOException.throwIt(ISO7816.SW_UNKNOWN);
         }
-        _dataObjects = new DataObject[maxObjects];
+        _arena = new byte[arenaSize];
+        _recordOffsets = new short[maxObjects];
+        _nodes = new short[(short)(maxNodes * NODE_SIZE)];
         _fileIdentifier = fileIdentifier;
+        _compactionThreshold = (short)(arenaSize / 2);
+        if (!indexed) {
+            _hits = JCSystem.makeTransientShortArray(maxObjects, JCSystem.CLEAR_ON_RESET);
+            return;
+        }
+
+        // Size the index to a power of two with at least twice as many entries as slots, keeping probe chains short
+        short indexSize = 2;
+        while (indexSize < (short)(maxObjects * 2)) {
+            indexSize = (short)(indexSize << 1);
+        }
+        _tagIndex = new short[indexSize];
     }
 
     /**
-     * Get the value of a data object from within a file
+     * Hash a tag for the tag index
+     * @param tagBuffer Tag data buffer
+     * @param tagOffset Tag data offset
+     * @param tagLength Tag data length
+     * @return Hash of the tag bytes
+     */
+    private static short hashTag(byte[] tagBuffer, short tagOffset, short tagLength) {
+        short hash = 0;
+        for (short i = 0; i < tagLength; i++) {
+            hash = (short)((short)(hash * 31) + (tagBuffer[(short)(tagOffset + i)] & 0xFF));
+        }
+        return hash;
+    }
+
+    /**
+     * Find the slot holding a data object
      * @param tag Byte array representing the tag for a data object
-     * @return
+     * @return Slot of the data object, or SLOT_NONE if the tag is not present
+     */
+    public short findSlot(byte[] tag) {
+        return findSlot(tag, OFFSET_NONE, (short)tag.length);
+    }
+
+    /**
+     * Find the slot holding a data object, without counting the lookup as a read
+     * @param tagBuffer Tag data buffer
+     * @param tagOffset Tag data offset
+     * @param tagLength Tag data length
+     * @return Slot of the data object, or SLOT_NONE if the tag is not present
+     */
+    public short findSlot(byte[] tagBuffer, short tagOffset, short tagLength) {
+        return findSlot(tagBuffer, tagOffset, tagLength, false);
+    }
+
+    /**
+     * Find the slot holding a data object
+     * @param tagBuffer Tag data buffer
+     * @param tagOffset Tag data offset
+     * @param tagLength Tag data length
+     * @param read true if the data object is looked up to be read, which counts towards the scan order
+     * @return Slot of the data object, or SLOT_NONE if the tag is not present
+     */
+    public short findSlot(byte[] tagBuffer, short tagOffset, short tagLength, boolean read) {
+        if (_moveSlot != SLOT_NONE) {
+            finishMove();
+        }
+        if (_tagIndex == null) {
+            return scanSlots(tagBuffer, tagOffset, tagLength, read);
+        }
+        short mask = (short)(_tagIndex.length - 1);
+        short entry = (short)(hashTag(tagBuffer, tagOffset, tagLength) & mask);
+
+        // Probe until the tag or an empty entry is found
+        for (short probes = 0; probes < _tagIndex.length; probes++) {
+            short slot = (short)(_tagIndex[entry] - 1);
+            if (slot == SLOT_NONE) {
+                return SLOT_NONE;
+            } else if (DataObject.tagEquals(_arena, _recordOffsets[slot], tagBuffer, tagOffset, tagLength)) {
+                return slot;
+            }
+            entry = (short)((short)(entry + 1) & mask);
+        }
+        return SLOT_NONE;
+    }
+
+    /**
+     * Find the slot holding a data object in a file without a tag index, counting the lookup if it is a read
+     * @param tagBuffer Tag data buffer
+     * @param tagOffset Tag data offset
+     * @param tagLength Tag data length
+     * @param read true to count the lookup towards the scan order
+     * @return Slot of the data object, or SLOT_NONE if the tag is not present
+     */
+    private short scanSlots(byte[] tagBuffer, short tagOffset, short tagLength, boolean read) {
+        for (short slot = 0; slot < _dataObjectCount; slot++) {
+            if (DataObject.tagEquals(_arena, _recordOffsets[slot], tagBuffer, tagOffset, tagLength)) {
+                if (read && _hits[slot] < HITS_MAX) {
+                    _hits[slot]++;
+                }
+                return slot;
+            }
+        }
+        return SLOT_NONE;
+    }
+
+    /**
+     * Add a slot to the tag index
+     * @param tagBuffer Tag data buffer
+     * @param tagOffset Tag data offset
+     * @param tagLength Tag data length
+     * @param slot Slot holding the data object
+     */
+    private void indexSlot(byte[] tagBuffer, short tagOffset, short tagLength, short slot) {
+        if (_tagIndex == null) {
+            return;
+        }
+        short mask = (short)(_tagIndex.length - 1);
+        short entry = (short)(hashTag(tagBuffer, tagOffset, tagLength) & mask);
+
+        // The index always has more entries than slots, so an empty entry exists
+        while (_tagIndex[entry] != 0) {
+            entry = (short)((short)(entry + 1) & mask);
+        }
+        _tagIndex[entry] = (short)(slot + 1);
+    }
+
+    /**
+     * Remove a slot from the tag index.  Later entries of the probe chain are shifted back into the gap, so the index
+     * never holds deleted entries and lookups never probe further than they would have had the slot never existed.
+     * @param slot Slot holding the data object, whose record must still hold its tag
+     */
+    private void unindexSlot(short slot) {
+        if (_tagIndex == null) {
+            return;
+        }
+        short mask = (short)(_tagIndex.length - 1);
+        short record = _recordOffsets[slot];
+        short entry = (short)(hashTag(_arena, DataObject.getTagOffset(record), DataObject.getTagLength(_arena, record)) & mask);
+        while (_tagIndex[entry] != (short)(slot + 1)) {
+            entry = (short)((short)(entry + 1) & mask);
+        }
+
+        // An entry may fill the gap unless its home lies cyclically after the gap, up to the entry itself
+        short gap = entry;
+        for (entry = (short)((short)(gap + 1) & mask); _tagIndex[entry] != 0; entry = (short)((short)(entry + 1) & mask)) {
+            short other = _recordOffsets[(short)(_tagIndex[entry] - 1)];
+            short home = (short)(hashTag(_arena, DataObject.getTagOffset(other), DataObject.getTagLength(_arena, other)) & mask);
+            boolean stays = (gap < entry) ? (home > gap && home <= entry) : (home > gap || home <= entry);
+            if (!stays) {
+                _tagIndex[gap] = _tagIndex[entry];
+                gap = entry;
+            }
+        }
+        _tagIndex[gap] = 0;
+    }
+
+    /**
+     * Point the tag index entry of a slot at another slot
+     * @param from Slot the entry refers to
+     * @param to Slot the entry will refer to
+     */
+    private void reindexSlot(short from, short to) {
+        if (_tagIndex == null) {
+            return;
+        }
+        short mask = (short)(_tagIndex.length - 1);
+        short record = _recordOffsets[from];
+        short entry = (short)(hashTag(_arena, DataObject.getTagOffset(record), DataObject.getTagLength(_arena, record)) & mask);
+        while (_tagIndex[entry] != (short)(from + 1)) {
+            entry = (short)((short)(entry + 1) & mask);
+        }
+        _tagIndex[entry] = (short)(to + 1);
+    }
+
+    /**
+     * Get the arena holding the values of this file's data objects
+     * @return Arena
+     */
+    public byte[] getArena() {
+        return _arena;
+    }
+
+    /**
+     * Get the arena offset of the record of a data object
+     * @param slot Slot holding the data object
+     * @return Offset of the record within the arena
+     */
+    public short getRecord(short slot) {
+        return _recordOffsets[slot];
+    }
+
+    /**
+     * Get the arena offset of the value of a data object
+     * @param slot Slot holding the data object
+     * @return Offset of the value within the arena
+     */
+    public short getValueOffset(short slot) {
+        return DataObject.getValueOffset(_arena, _recordOffsets[slot]);
+    }
+
+    /**
+     * Get the length of the value of a data object
+     * @param slot Slot holding the data object
+     * @return Length of the value
      */
-    public byte[] getData(byte[] tag) {
-        return getData(tag, OFFSET_NONE, (short)tag.length);
+    public short getValueLength(short slot) {
+        return DataObject.getLength(_arena, _recordOffsets[slot]);
     }
 
     /**
-     * Get the value of a data object from within a file
+     * Find a data object nested within a constructed data object
+     * @param slot Slot holding the constructed data object
+     * @param parent Node enclosing the nested data object, or NODE_NONE to search the direct children of the slot
      * @param tagBuffer Tag data buffer
      * @param tagOffset Tag data offset
      * @param tagLength Tag data length
-     * @return Byte array containing the tag data
+     * @return Node of the nested data object, or NODE_NONE if it is not present
      */
-    public byte[] getData (byte[] tagBuffer, short tagOffset, short tagLength) {
-        for (short i = 0; i < _dataObjects.length; i++) {
-            if (_dataObjects[i] == null) {
-                continue;
-            } else if (_dataObjects[i].tagEquals(tagBuffer, tagOffset, tagLength)) {
-                return _dataObjects[i].getData();
+    public short findNode(short slot, short parent, byte[] tagBuffer, short tagOffset, short tagLength) {
+        short valueStart = getValueOffset(slot);
+        for (short node = 0; node < _nodeCount; node++) {
+            short entry = (short)(node * NODE_SIZE);
+            if (_nodes[(short)(entry + NODE_SLOT)] == slot && _nodes[(short)(entry + NODE_PARENT)] == parent
+                    && _nodes[(short)(entry + NODE_TAG_SIZE)] == tagLength
+                    && Util.arrayCompare(tagBuffer, tagOffset, _arena,
+                        (short)(valueStart + _nodes[(short)(entry + NODE_TAG_OFFSET)]), tagLength) == 0) {
+                return node;
             }
         }
+        return NODE_NONE;
+    }
 
-        return null;
+    /**
+     * Get the arena offset of the value of a nested data object
+     * @param slot Slot holding the constructed data object
+     * @param node Node of the nested data object
+     * @return Offset of the value within the arena
+     */
+    public short getNodeValueOffset(short slot, short node) {
+        return (short)(getValueOffset(slot) + _nodes[(short)(node * NODE_SIZE + NODE_VALUE_OFFSET)]);
+    }
+
+    /**
+     * Get the length of the value of a nested data object
+     * @param node Node of the nested data object
+     * @return Length of the value
+     */
+    public short getNodeValueLength(short node) {
+        return _nodes[(short)(node * NODE_SIZE + NODE_VALUE_LENGTH)];
     }
 
     /**
@@ -73,44 +444,608 @@ public class ElementaryFile {
     }
 
     /**
-     * Place a data object within a files
-     * @param dataObject
+     * Compare the file identifier of this file
+     * @param buffer Buffer holding the file identifier to compare against
+     * @param offset Offset of the file identifier (2 bytes)
+     * @return true if the file identifiers are equal
      */
-    public void putData(DataObject dataObject) {
-        byte[] tag = dataObject.getTag();
-        putData (tag, OFFSET_NONE, (short)tag.length, dataObject.getData());
+    public boolean fileIdentifierEquals(byte[] buffer, short offset) {
+        return Util.arrayCompare(buffer, offset, _fileIdentifier, OFFSET_NONE, (short)2) == 0;
     }
 
+    /**
+     * Get the serialized file control information
+     * @return FCI template
+     */
+    public byte[] getFci() {
+        return _fci;
+    }
 
     /**
-     * Put data into a data object
+     * Set the serialized file control information.  It only depends on the file identifier and DF name, which never
+     * change after creation, so it is set once and never needs invalidating.
+     * @param fci FCI template
+     */
+    public void setFci(byte[] fci) {
+        _fci = fci;
+    }
+
+    /**
+     * Get the access conditions of the file
+     * @return Access conditions, as DataObject access bits
+     */
+    public byte getAccessConditions() {
+        return _access;
+    }
+
+    /**
+     * Set the access conditions of the file.  Called once, when the file is created, as they are compiled into the
+     * data objects written to it.
+     * @param access Access conditions, as DataObject access bits
+     */
+    public void setAccessConditions(byte access) {
+        _access = access;
+    }
+
+    /**
+     * Get the access conditions of a data object, which include those of the file
+     * @param slot Slot of the data object
+     * @return Access conditions, as DataObject access bits
+     */
+    public byte getAccessConditions(short slot) {
+        return (byte)(DataObject.getFlags(_arena, _recordOffsets[slot]) & DataObject.MASK_ACCESS);
+    }
+
+    /**
+     * Check whether the access conditions of a data object deny access
+     * @param slot Slot of the data object
+     * @param denied Access conditions the command does not meet, of the access mode being checked
+     * @return true if the data object may not be accessed
+     */
+    public boolean isDenied(short slot, byte denied) {
+        return DataObject.isDenied(_arena, _recordOffsets[slot], denied);
+    }
+
+    /**
+     * Get the dedicated file containing this file
+     * @return Parent dedicated file, or null for the master file
+     */
+    public DedicatedFile getParent() {
+        return _parent;
+    }
+
+    /**
+     * Begin writing the value of a data object.
+     * If the tag exists and the new value fits in its record, the existing record is returned and updated in place.
+     * Otherwise a new record is written above the arena top, where nothing references it until it is published.
+     * Records written by the same batch must not be moved before they are published, so once a batch has written a
+     * record, further records are staged after it and the arena is never compacted.  A new tag only needs a free slot
+     * once published, as deletions earlier in the batch may free one, so the caller checks that it will have one.
      * @param buffer Source Buffer for the tag
      * @param tagOffset Source Buffer offset for the tag
      * @param tagLength Length of the tag
-     * @param data Data for the data object
-     */
-    public void putData(byte[] buffer, short tagOffset, short tagLength, byte[] data) {
-        short openSlot = SLOT_NONE;
-
-        // Look for the tag, and notate the first open slot (if any)
-        for (short i = 0; i < _dataObjects.length; i++) {
-            // If the tag exists, update it
-            if (_dataObjects[i] == null) {
-                openSlot = i;
-                break;
-            } else if (_dataObjects[i].tagEquals(buffer, tagOffset, tagLength)) {
-                _dataObjects[i].setData(data);
-                JCSystem.requestObjectDeletion();
+     * @param valueLength Length of the value that will be written
+     * @param flags Flags of the record.  A record is only updated in place if its flags are unchanged.
+     * @param allowInPlace false to always stage a new record
+     * @param batchEnd End of the last record written by the batch, or RECORD_NONE if this is its first record
+     * @return Arena offset of the record receiving the value
+     */
+    public short beginPut(byte[] buffer, short tagOffset, short tagLength, short valueLength, byte flags,
+                          boolean allowInPlace, short batchEnd) {
+        short slot = findSlot(buffer, tagOffset, tagLength);
+        if (slot != SLOT_NONE) {
+            short record = _recordOffsets[slot];
+            if (allowInPlace && valueLength <= DataObject.getCapacity(_arena, record)
+                    && DataObject.getFlags(_arena, record) == flags) {
+                return record;
+            }
+        }
+
+        short record = allocateRecord(tagLength, valueLength, batchEnd);
+        DataObject.writeHeader(_arena, record, buffer, tagOffset, tagLength, valueLength, valueLength, flags);
+        return record;
+    }
+
+    /**
+     * Get the offset just past a record
+     * @param record Arena offset of the record
+     * @return Offset of the end of the record
+     */
+    public short getRecordEnd(short record) {
+        return (short)(record + DataObject.getRecordSize(_arena, record));
+    }
+
+    /**
+     * Get the number of data objects that can still be added
+     * @return Number of free slots
+     */
+    public short getFreeSlotCount() {
+        return (short)(_recordOffsets.length - _dataObjectCount);
+    }
+
+    /**
+     * Overwrite the value of an existing, uncompressed primitive data object with a value of the same length.
+     * Nothing but the value changes, so a single atomic copy is all it takes: no staging, header update or transaction.
+     * @param tagBuffer Tag data buffer
+     * @param tagOffset Tag data offset
+     * @param tagLength Tag data length
+     * @param srcBuffer Source buffer of the value
+     * @param srcOffset Source offset of the value
+     * @param length Length of the value
+     * @param denied Write access conditions the command does not meet.  A data object that requires any of them is
+     *               left to beginPut, whose caller refuses it.
+     * @return true if the value was overwritten, false if the data object must be written by beginPut
+     */
+    public boolean overwriteValue(byte[] tagBuffer, short tagOffset, short tagLength,
+                                  byte[] srcBuffer, short srcOffset, short length, byte denied) {
+        if (DerParser.IsConstructed(tagBuffer[tagOffset])) {
+            return false;
+        }
+        short slot = findSlot(tagBuffer, tagOffset, tagLength);
+        if (slot == SLOT_NONE || getValueLength(slot) != length || isCompressed(slot) || isDenied(slot, denied)) {
+            return false;
+        }
+        Util.arrayCopy(srcBuffer, srcOffset, _arena, getValueOffset(slot), length);
+        return true;
+    }
+
+    /**
+     * Patch part of a stored value, without moving it.  The patch is written atomically, and must lie within the
+     * value of a primitive data object, as the structure index of a constructed one is not updated.
+     * @param slot Slot of the data object
+     * @param valueOffset Offset within the value to write to
+     * @param srcBuffer Source buffer
+     * @param srcOffset Source buffer offset
+     * @param length Number of bytes to write
+     */
+    public void updateValue(short slot, short valueOffset, byte[] srcBuffer, short srcOffset, short length) {
+        Util.arrayCopy(srcBuffer, srcOffset, _arena, (short)(getValueOffset(slot) + valueOffset), length);
+    }
+
+    /**
+     * Check whether the value of a data object is stored compressed
+     * @param slot Slot of the data object
+     * @return true if the value is PackBits compressed
+     */
+    public boolean isCompressed(short slot) {
+        return (DataObject.getFlags(_arena, _recordOffsets[slot]) & DataObject.FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * Get the length of the value of a data object as it is sent, expanding it if stored compressed
+     * @param slot Slot of the data object
+     * @return Length of the value, once expanded
+     */
+    public short getExpandedLength(short slot) {
+        short length = getValueLength(slot);
+        if (!isCompressed(slot)) {
+            return length;
+        }
+        return PackBits.GetExpandedLength(_arena, getValueOffset(slot), length);
+    }
+
+    /**
+     * Check whether a record is referenced by a slot, as opposed to being staged above the arena top
+     * @param record Arena offset of the record
+     * @return true if the record is published
+     */
+    public boolean isPublished(short record) {
+        return record < _arenaTop;
+    }
+
+    /**
+     * Write part of the value of a record returned by beginPut.
+     * Published records are written atomically, staged records are not yet visible and are written non-atomically.
+     * @param record Arena offset of the record
+     * @param valueOffset Offset within the value to write to
+     * @param srcBuffer Source buffer
+     * @param srcOffset Source buffer offset
+     * @param length Number of bytes to write
+     */
+    public void writeValue(short record, short valueOffset, byte[] srcBuffer, short srcOffset, short length) {
+        short dstOffset = (short)(DataObject.getValueOffset(_arena, record) + valueOffset);
+        if (isPublished(record)) {
+            Util.arrayCopy(srcBuffer, srcOffset, _arena, dstOffset, length);
+        } else {
+            Util.arrayCopyNonAtomic(srcBuffer, srcOffset, _arena, dstOffset, length);
+        }
+    }
+
+    /**
+     * Finish writing the value of a record returned by beginPut, making the new value visible
+     * @param record Arena offset of the record
+     * @param valueLength Length of the value written
+     * @param cursor Cursor used to index the structure of a constructed value
+     * @return Slot holding the data object
+     */
+    public short endPut(short record, short valueLength, short[] cursor) {
+        short tagOffset = DataObject.getTagOffset(record);
+        short tagLength = DataObject.getTagLength(_arena, record);
+        short slot = findSlot(_arena, tagOffset, tagLength);
+        if (slot == SLOT_NONE && _dataObjectCount == (short)_recordOffsets.length) {
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+
+        boolean ownTransaction = JCSystem.getTransactionDepth() == 0;
+        if (ownTransaction) {
+            JCSystem.beginTransaction();
+        }
+
+        // Replace the structure index of a constructed data object.  A malformed value is rejected here.
+        if (DerParser.IsConstructed(_arena[tagOffset])) {
+            if (slot != SLOT_NONE) {
+                removeStructure(slot);
+            }
+            indexStructure(slot == SLOT_NONE ? _dataObjectCount : slot, record, valueLength, cursor);
+        }
+
+        if (isPublished(record)) {
+            // Updated in place.  The header only needs writing if the length changed.
+            if (DataObject.getLength(_arena, record) != valueLength) {
+                DataObject.setLength(_arena, record, valueLength);
+            }
+        } else {
+            if (slot == SLOT_NONE) {
+                slot = _dataObjectCount;
+                indexSlot(_arena, tagOffset, tagLength, slot);
+                _dataObjectCount++;
+            } else {
+                _orphanedBytes += DataObject.getRecordSize(_arena, _recordOffsets[slot]);
+            }
+            _recordOffsets[slot] = record;
+            _arenaTop = (short)(record + DataObject.getRecordSize(_arena, record));
+        }
+        if (ownTransaction) {
+            JCSystem.commitTransaction();
+        }
+        return slot;
+    }
+
+    /**
+     * Delete a data object.  Its record is orphaned, to be reclaimed by compaction, and its slot is freed.
+     * The last slot moves into the freed one, so a new data object never has to search for a slot.
+     * @param record Arena offset of a record holding the tag of the data object
+     */
+    public void delete(short record) {
+        short slot = findSlot(_arena, DataObject.getTagOffset(record), DataObject.getTagLength(_arena, record));
+        if (slot == SLOT_NONE) {
+            return;
+        }
+
+        boolean ownTransaction = JCSystem.getTransactionDepth() == 0;
+        if (ownTransaction) {
+            JCSystem.beginTransaction();
+        }
+        removeStructure(slot);
+        unindexSlot(slot);
+        _orphanedBytes += DataObject.getRecordSize(_arena, _recordOffsets[slot]);
+
+        short last = (short)(_dataObjectCount - 1);
+        if (slot != last) {
+            reindexSlot(last, slot);
+            _recordOffsets[slot] = _recordOffsets[last];
+            for (short node = 0; node < _nodeCount; node++) {
+                short entry = (short)(node * NODE_SIZE + NODE_SLOT);
+                if (_nodes[entry] == last) {
+                    _nodes[entry] = slot;
+                }
+            }
+        }
+        if (_hits != null) {
+            _hits[slot] = _hits[last];
+            _hits[last] = 0;
+        }
+        _dataObjectCount = last;
+        if (ownTransaction) {
+            JCSystem.commitTransaction();
+        }
+    }
+
+    /**
+     * Index the nested data objects of a constructed value, one level at a time.
+     * The node table doubles as the work queue: each constructed node appended is itself parsed in turn.
+     * @param slot Slot the data object will be held in
+     * @param record Arena offset of the record
+     * @param valueLength Length of the value
+     * @param cursor Cursor used to parse the value
+     */
+    private void indexStructure(short slot, short record, short valueLength, short[] cursor) {
+        short valueStart = DataObject.getValueOffset(_arena, record);
+        short parent = NODE_NONE;
+        short start = valueStart;
+        short end = (short)(valueStart + valueLength);
+        short count = _nodeCount;
+        short next = count;
+
+        // Nodes are only counted in once the whole value has been parsed
+        while (true) {
+            // Add a node for each data object directly within [start, end)
+            while (start < end) {
+                short valueEnd = DerParser.ReadTlv(_arena, start, end, cursor);
+                if (count == (short)(_nodes.length / NODE_SIZE)) {
+                    ISOException.throwIt(ISO7816.SW_FILE_FULL);
+                }
+                short entry = (short)(count * NODE_SIZE);
+                _nodes[(short)(entry + NODE_SLOT)] = slot;
+                _nodes[(short)(entry + NODE_PARENT)] = parent;
+                _nodes[(short)(entry + NODE_TAG_OFFSET)] = (short)(start - valueStart);
+                _nodes[(short)(entry + NODE_TAG_SIZE)] = cursor[DerParser.CURSOR_TAG_SIZE];
+                _nodes[(short)(entry + NODE_VALUE_OFFSET)] = (short)(cursor[DerParser.CURSOR_VALUE_OFFSET] - valueStart);
+                _nodes[(short)(entry + NODE_VALUE_LENGTH)] = cursor[DerParser.CURSOR_VALUE_LENGTH];
+                count++;
+                start = valueEnd;
+            }
+
+            // Move on to the next constructed node, if any
+            while (next < count
+                    && !DerParser.IsConstructed(_arena[(short)(valueStart + _nodes[(short)(next * NODE_SIZE + NODE_TAG_OFFSET)])])) {
+                next++;
+            }
+            if (next == count) {
+                _nodeCount = count;
                 return;
             }
+            parent = next;
+            start = (short)(valueStart + _nodes[(short)(next * NODE_SIZE + NODE_VALUE_OFFSET)]);
+            end = (short)(start + _nodes[(short)(next * NODE_SIZE + NODE_VALUE_LENGTH)]);
+            next++;
+        }
+    }
+
+    /**
+     * Remove the structure index of a data object, closing the gap in the node table
+     * @param slot Slot holding the data object
+     */
+    private void removeStructure(short slot) {
+        short first = NODE_NONE;
+        short count = 0;
+        for (short node = 0; node < _nodeCount; node++) {
+            if (_nodes[(short)(node * NODE_SIZE + NODE_SLOT)] == slot) {
+                if (first == NODE_NONE) {
+                    first = node;
+                }
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        // Later nodes belong to other data objects, and only ever have parents among themselves
+        for (short node = (short)(first + count); node < _nodeCount; node++) {
+            short from = (short)(node * NODE_SIZE);
+            short to = (short)((short)(node - count) * NODE_SIZE);
+            for (short i = 0; i < NODE_SIZE; i++) {
+                _nodes[(short)(to + i)] = _nodes[(short)(from + i)];
+            }
+            if (_nodes[(short)(to + NODE_PARENT)] != NODE_NONE) {
+                _nodes[(short)(to + NODE_PARENT)] -= count;
+            }
+        }
+        _nodeCount -= count;
+    }
+
+    /**
+     * Find room for a new record at the top of the arena, compacting the arena if needed
+     * @param tagLength Length of the tag
+     * @param capacity Space to reserve for the value
+     * @param batchEnd End of the last record written by the batch, or RECORD_NONE if there is none
+     * @return Offset of the new record
+     */
+    private short allocateRecord(short tagLength, short capacity, short batchEnd) {
+        short size = (short)(DataObject.getHeaderSize(tagLength) + capacity);
+        if (size < 0) {
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+
+        // Within a batch, stage after the batch's records, without compacting
+        if (batchEnd != RECORD_NONE) {
+            short start = (batchEnd > _arenaTop) ? batchEnd : _arenaTop;
+            if (size > (short)(_arena.length - start)) {
+                ISOException.throwIt(ISO7816.SW_FILE_FULL);
+            }
+            return start;
         }
 
-        // Since the tag was not found, create it.
-        if (openSlot == SLOT_NONE) {
+        if (size > (short)(_arena.length - _arenaTop + _orphanedBytes)) {
             ISOException.throwIt(ISO7816.SW_FILE_FULL);
         }
-        DataObject newObject = new DataObject(buffer, tagOffset, tagLength);
-        newObject.setData(data);
-        _dataObjects[openSlot] = newObject;
+        if (size > (short)(_arena.length - _arenaTop)) {
+            compact();
+            if (size > (short)(_arena.length - _arenaTop)) {
+                ISOException.throwIt(ISO7816.SW_FILE_FULL);
+            }
+        }
+        return _arenaTop;
+    }
+
+    /**
+     * Check whether enough space has been orphaned that the arena should be compacted
+     * @return true if the orphaned bytes have reached the compaction threshold
+     */
+    public boolean isCompactionDue() {
+        return _orphanedBytes != 0 && _orphanedBytes >= _compactionThreshold;
+    }
+
+    /**
+     * Write the status of the file's storage
+     * <p>
+     * [Arena Size (2)] [Free Bytes (2)] [Orphaned Bytes (2)] [Compaction Threshold (2)] [Data Objects (2)] [Free Slots (2)]
+     * @param buffer Destination buffer
+     * @param offset Destination offset
+     * @return Length of the status
+     */
+    public short writeStatus(byte[] buffer, short offset) {
+        short start = offset;
+        offset = Util.setShort(buffer, offset, (short)_arena.length);
+        offset = Util.setShort(buffer, offset, (short)(_arena.length - _arenaTop));
+        offset = Util.setShort(buffer, offset, _orphanedBytes);
+        offset = Util.setShort(buffer, offset, _compactionThreshold);
+        offset = Util.setShort(buffer, offset, _dataObjectCount);
+        offset = Util.setShort(buffer, offset, getFreeSlotCount());
+        return (short)(offset - start);
+    }
+
+    /**
+     * Move the most read data objects to the front of the slots, so that lookups in a file without a tag index find
+     * them first.  The new order is worked out in RAM, then each offset and structure node that changes is written
+     * once, in a single transaction, so the commit buffer use grows only linearly with the number of data objects.
+     * Lookup counts are then halved, so the order follows changes in which data objects are read.  Called as part of
+     * maintenance.
+     * @param scratch Working RAM of at least twice as many entries as the file has slots
+     */
+    public void reorder(short[] scratch) {
+        if (_tagIndex != null) {
+            return;
+        }
+        short count = _dataObjectCount;
+
+        // Insertion sort of the slots by lookup count, which keeps data objects read equally often in their order.
+        // The first half of the scratch holds the slot moving to each slot, the second the slot each one moves to.
+        boolean moved = false;
+        for (short slot = 0; slot < count; slot++) {
+            short position = slot;
+            for (; position > 0 && _hits[slot] > _hits[scratch[(short)(position - 1)]]; position--) {
+                scratch[position] = scratch[(short)(position - 1)];
+            }
+            scratch[position] = slot;
+        }
+        for (short slot = 0; slot < count; slot++) {
+            scratch[(short)(count + scratch[slot])] = slot;
+            moved |= scratch[slot] != slot;
+        }
+
+        if (moved) {
+            boolean ownTransaction = JCSystem.getTransactionDepth() == 0;
+            if (ownTransaction) {
+                JCSystem.beginTransaction();
+            }
+            for (short node = 0; node < _nodeCount; node++) {
+                short entry = (short)(node * NODE_SIZE + NODE_SLOT);
+                short slot = scratch[(short)(count + _nodes[entry])];
+                if (_nodes[entry] != slot) {
+                    _nodes[entry] = slot;
+                }
+            }
+
+            // Follow each cycle of the permutation, so that every offset is written once
+            for (short first = 0; first < count; first++) {
+                if (scratch[first] == first) {
+                    continue;
+                }
+                short record = _recordOffsets[first];
+                short hits = _hits[first];
+                short slot = first;
+                for (short source = scratch[slot]; source != first; source = scratch[slot]) {
+                    _recordOffsets[slot] = _recordOffsets[source];
+                    _hits[slot] = _hits[source];
+                    scratch[slot] = slot;
+                    slot = source;
+                }
+                _recordOffsets[slot] = record;
+                _hits[slot] = hits;
+                scratch[slot] = slot;
+            }
+            if (ownTransaction) {
+                JCSystem.commitTransaction();
+            }
+        }
+        for (short slot = 0; slot < count; slot++) {
+            _hits[slot] = (short)(_hits[slot] >> 1);
+        }
+    }
+
+    /**
+     * Slide all referenced records to the bottom of the arena, reclaiming orphaned space.
+     * Records are moved in order of their arena offset, so each move only ever copies downwards.
+     * Called when an allocation cannot otherwise be satisfied, once the compaction threshold is reached, or on request.
+     */
+    public void compact() {
+        if (_moveSlot != SLOT_NONE) {
+            finishMove();
+        }
+        if (_orphanedBytes == 0) {
+            return;
+        }
+
+        short target = OFFSET_NONE;
+        short cursor = OFFSET_NONE;
+        boolean ownTransaction = JCSystem.getTransactionDepth() == 0;
+
+        for (short moved = 0; moved < _dataObjectCount; moved++) {
+            // Find the lowest record not yet visited
+            short slot = SLOT_NONE;
+            for (short i = 0; i < _dataObjectCount; i++) {
+                short record = _recordOffsets[i];
+                if (record >= cursor && (slot == SLOT_NONE || record < _recordOffsets[slot])) {
+                    slot = i;
+                }
+            }
+
+            short record = _recordOffsets[slot];
+            short size = DataObject.getRecordSize(_arena, record);
+            cursor = (short)(record + 1);
+            if (record != target) {
+                if (ownTransaction) {
+                    // Record the move, so that a move torn between chunks is finished before the file is next used
+                    JCSystem.beginTransaction();
+                    _moveSlot = slot;
+                    _moveTarget = target;
+                    _moveSize = size;
+                    _moveDone = 0;
+                    JCSystem.commitTransaction();
+                    finishMove();
+                } else if (size <= (short)(JCSystem.getUnusedCommitCapacity() - MOVE_RESERVE)) {
+                    // Within the caller's transaction, the move must land with it in one piece
+                    Util.arrayCopy(_arena, record, _arena, target, size);
+                    _recordOffsets[slot] = target;
+                } else {
+                    // Leave the rest for a compaction with its own transactions; the arena stays consistent
+                    return;
+                }
+            }
+            target += size;
+        }
+
+        if (ownTransaction) {
+            JCSystem.beginTransaction();
+        }
+        _arenaTop = target;
+        _orphanedBytes = 0;
+        if (ownTransaction) {
+            JCSystem.commitTransaction();
+        }
+    }
+
+    /**
+     * Finish the move recorded by compact(), copying the rest of the record down in chunks that each fit the commit
+     * buffer.  Each chunk lands together with the progress marker, and since the record only ever moves down, the
+     * bytes not yet copied are never overwritten.
+     */
+    private void finishMove() {
+        short source = _recordOffsets[_moveSlot];
+        while (_moveDone < _moveSize) {
+            short chunk = (short)(_moveSize - _moveDone);
+            if (chunk > MOVE_CHUNK_SIZE) {
+                chunk = MOVE_CHUNK_SIZE;
+            }
+            short capacity = (short)(JCSystem.getUnusedCommitCapacity() - MOVE_RESERVE);
+            if (capacity <= 0) {
+                ISOException.throwIt(ISO7816.SW_FILE_FULL);
+            }
+            if (chunk > capacity) {
+                chunk = capacity;
+            }
+
+            JCSystem.beginTransaction();
+            Util.arrayCopy(_arena, (short)(source + _moveDone), _arena, (short)(_moveTarget + _moveDone), chunk);
+            _moveDone += chunk;
+            JCSystem.commitTransaction();
+        }
+
+        JCSystem.beginTransaction();
+        _recordOffsets[_moveSlot] = _moveTarget;
+        _moveSlot = SLOT_NONE;
+        JCSystem.commitTransaction();
     }
 }
@@ -0,0 +1,181 @@
+package applet;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.AESKey;
+import javacard.security.KeyBuilder;
+import javacard.security.RandomData;
+import javacardx.crypto.Cipher;
+
+/**
+ * Challenge-response authentication of the terminal, as used by GET CHALLENGE and EXTERNAL AUTHENTICATE.
+ * <p>
+ * The card sends a random challenge, and the terminal proves it holds the authentication key by returning the
+ * challenge enciphered with AES-128.  Each challenge may be answered once.  Once authenticated, the terminal stays so
+ * until the applet is selected again or deselected on that logical channel, and each write only checks a flag.  Each
+ * logical channel has its own challenge and authentication state, so authenticating on one channel grants nothing on
+ * another.  The cipher is initialized with the key when it is set, and again only after a reset, so no command pays for
+ * the key schedule except EXTERNAL AUTHENTICATE.
+ */
+public class ExternalAuthentication {
+    /**
+     * Length of a challenge, and of its answer: one AES block
+     */
+    public static final short CHALLENGE_SIZE = 16;
+
+    /**
+     * Verification failed.  See ISO/IEC 7816-4:2020(E) 5.6
+     */
+    private static final short ISO7816_SW_VERIFICATION_FAILED = (short)0x6300;
+
+    /**
+     * State: set while a challenge is waiting to be answered
+     */
+    private static final byte STATE_CHALLENGED = 0;
+
+    /**
+     * State: set once the terminal has authenticated
+     */
+    private static final byte STATE_AUTHENTICATED = 1;
+
+    private static final byte STATE_SIZE = 2;
+
+    /**
+     * Flag, cleared on reset, that is set while the cipher holds the key
+     */
+    private static final byte READY = 0;
+
+    /**
+     * Authentication key, given at install time
+     */
+    private final AESKey _key;
+
+    /**
+     * AES-ECB, kept initialized with the authentication key
+     */
+    private final Cipher _cipher;
+
+    /**
+     * Source of challenges
+     */
+    private final RandomData _random;
+
+    /**
+     * Last challenge sent on each logical channel, followed by room for the expected answer
+     */
+    private final byte[] _challenge;
+
+    /**
+     * Offset in _challenge of the expected answer, after the challenge of every logical channel
+     */
+    private final short _answerOffset;
+
+    /**
+     * Authentication state of each logical channel, STATE_SIZE entries each
+     */
+    private final short[] _state;
+
+    /**
+     * Set while the cipher is initialized with the key.  Cipher state does not survive a reset.
+     */
+    private final boolean[] _ready;
+
+    /**
+     * Creates the key and cipher.  Called once, at install time.
+     * @param random Source of challenges
+     * @param channels Number of logical channels to keep authentication state for
+     */
+    public ExternalAuthentication(RandomData random, byte channels) {
+        _random = random;
+        _key = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+        _cipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
+        _answerOffset = (short)(channels * CHALLENGE_SIZE);
+        _challenge = JCSystem.makeTransientByteArray((short)(_answerOffset + CHALLENGE_SIZE), JCSystem.CLEAR_ON_DESELECT);
+        _state = JCSystem.makeTransientShortArray((short)(channels * STATE_SIZE), JCSystem.CLEAR_ON_DESELECT);
+        _ready = JCSystem.makeTransientBooleanArray((short)1, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Set the authentication key.  Called at install time.
+     * @param buffer Buffer holding the key
+     * @param offset Offset of the key, which is CHALLENGE_SIZE bytes long
+     */
+    public void setKey(byte[] buffer, short offset) {
+        _key.setKey(buffer, offset);
+        _cipher.init(_key, Cipher.MODE_ENCRYPT);
+        _ready[READY] = true;
+    }
+
+    /**
+     * Check whether an authentication key was given, in which case writes need authentication
+     * @return true if external authentication is available
+     */
+    public boolean hasKey() {
+        return _key.isInitialized();
+    }
+
+    /**
+     * Check whether the terminal has authenticated on a logical channel since the applet was selected on it
+     * @param channel Logical channel
+     * @return true if authenticated
+     */
+    public boolean isAuthenticated(byte channel) {
+        return _state[(short)(channel * STATE_SIZE + STATE_AUTHENTICATED)] != 0;
+    }
+
+    /**
+     * Forget any challenge and authentication on a logical channel.  Called when the applet is selected or deselected
+     * on it.
+     * @param channel Logical channel
+     */
+    public void reset(byte channel) {
+        short state = (short)(channel * STATE_SIZE);
+        _state[(short)(state + STATE_CHALLENGED)] = 0;
+        _state[(short)(state + STATE_AUTHENTICATED)] = 0;
+    }
+
+    /**
+     * Generate a new challenge on a logical channel, replacing any unanswered one
+     * @param channel Logical channel
+     * @param buffer Buffer to write the challenge to
+     * @param offset Offset to write the challenge at
+     * @return Length of the challenge
+     */
+    public short generateChallenge(byte channel, byte[] buffer, short offset) {
+        _random.generateData(buffer, offset, CHALLENGE_SIZE);
+        Util.arrayCopyNonAtomic(buffer, offset, _challenge, (short)(channel * CHALLENGE_SIZE), CHALLENGE_SIZE);
+        _state[(short)(channel * STATE_SIZE + STATE_CHALLENGED)] = 1;
+        return CHALLENGE_SIZE;
+    }
+
+    /**
+     * Check the terminal's answer to the last challenge of a logical channel, which is then spent
+     * @param channel Logical channel
+     * @param buffer Buffer holding the answer
+     * @param offset Offset of the answer
+     * @param length Length of the answer
+     */
+    public void authenticate(byte channel, byte[] buffer, short offset, short length) {
+        short state = (short)(channel * STATE_SIZE);
+        if (!hasKey() || _state[(short)(state + STATE_CHALLENGED)] == 0) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        _state[(short)(state + STATE_CHALLENGED)] = 0;
+        _state[(short)(state + STATE_AUTHENTICATED)] = 0;
+        if (length != CHALLENGE_SIZE) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        if (!_ready[READY]) {
+            _cipher.init(_key, Cipher.MODE_ENCRYPT);
+            _ready[READY] = true;
+        }
+        _cipher.doFinal(_challenge, (short)(channel * CHALLENGE_SIZE), CHALLENGE_SIZE, _challenge, _answerOffset);
+        if (Util.arrayCompare(_challenge, _answerOffset, buffer, offset, CHALLENGE_SIZE) != 0) {
+            ISOException.throwIt(ISO7816_SW_VERIFICATION_FAILED);
+        }
+        _state[(short)(state + STATE_AUTHENTICATED)] = 1;
+    }
+}
@@ -4,222 +4,1594 @@ import javacard.framework.*;
 import javacard.security.RandomData;
 import javacardx.apdu.ExtendedLength;
 
-public class IsoscelesApplet extends Applet implements ExtendedLength
+public class IsoscelesApplet extends Applet implements ExtendedLength, MultiSelectable
 {
 	/**
 	 * Used to indicate that there is no offset (in other words, the offset is zero)
 	 */
 	public static final short OFFSET_NONE = (short)0x00;
 
+	/**
+	 * Class byte bit indicating that the command is not the last of a chain.  See ISO/IEC 7816-4:2020(E) 5.3.3
+	 */
+	private static final byte CLA_COMMAND_CHAINING = (byte)0x10;
+
+	/**
+	 * Class byte bit distinguishing further interindustry classes (0x40 to 0x7F), which carry logical channel numbers
+	 * 4 to 19.  See ISO/IEC 7816-4:2020(E) 5.4.1
+	 */
+	private static final byte CLA_FURTHER_INTERINDUSTRY = (byte)0x40;
+
+	/**
+	 * Logical channel bits of a first interindustry class byte
+	 */
+	private static final byte CLA_FIRST_CHANNEL_MASK = (byte)0x03;
+
+	/**
+	 * Secure messaging bit of a further interindustry class byte
+	 */
+	private static final byte CLA_FURTHER_SECURE_MESSAGING = (byte)0x20;
+
+	/**
+	 * Secure messaging bits of a first interindustry class byte equivalent to CLA_FURTHER_SECURE_MESSAGING
+	 */
+	private static final byte CLA_FIRST_SECURE_MESSAGING = (byte)0x08;
+
+	/**
+	 * Secure messaging bits of a first interindustry class byte.  See ISO/IEC 7816-4:2020(E) 5.4.1
+	 */
+	private static final byte CLA_SECURE_MESSAGING_MASK = (byte)0x0C;
+
+	/**
+	 * Secure messaging with the command header authenticated, the only form the applet supports
+	 */
+	private static final byte CLA_SECURE_MESSAGING_AUTHENTICATED = (byte)0x0C;
+
+	/**
+	 * Number of logical channels the applet keeps selection state for.  It cannot be selected on any other.
+	 */
+	private static final byte MAX_CHANNELS = 4;
+
+	/**
+	 * Selection state: current dedicated file
+	 */
+	private static final byte SELECTION_DEDICATED_FILE = 0;
+
+	/**
+	 * Selection state: current application dedicated file
+	 */
+	private static final byte SELECTION_APPLICATION_DEDICATED_FILE = 1;
+
+	private static final byte SELECTION_SIZE = 2;
+
+	/**
+	 * Used to select a file
+	 */
+	private static final byte INS_SELECT = (byte)0xA4;
+
+	/**
+	 * Used to create a file within the current dedicated file
+	 */
+	private static final byte INS_CREATE_FILE = (byte)0xE0;
+
+	/**
+	 * Used to retrieve response data that did not fit in the previous response
+	 */
+	private static final byte INS_GET_RESPONSE = (byte)0xC0;
+
 	/**
 	 * Used to get a data object from an elementary file or dedicated file
 	 */
 	private static final byte INS_GET_DATA = (byte)0xCB;
 
-	/**
-	 * Used to store a data object within an elementary file or dedicated file
-	 */
-	private static final byte INS_PUT_DATA = (byte)0xDB;
+	/**
+	 * Used to store a data object within an elementary file or dedicated file
+	 */
+	private static final byte INS_PUT_DATA = (byte)0xDB;
+
+	/**
+	 * Used to read part of the value of a data object, from an offset
+	 */
+	private static final byte INS_READ_BINARY = (byte)0xB1;
+
+	/**
+	 * Used to overwrite part of the value of a data object, from an offset
+	 */
+	private static final byte INS_UPDATE_BINARY = (byte)0xD7;
+
+	/**
+	 * Used to get a random challenge for EXTERNAL AUTHENTICATE
+	 */
+	private static final byte INS_GET_CHALLENGE = (byte)0x84;
+
+	/**
+	 * Used to authenticate the terminal, by answering the last challenge
+	 */
+	private static final byte INS_EXTERNAL_AUTHENTICATE = (byte)0x82;
+
+	/**
+	 * Supported instructions, in the order of their usage counters from Statistics.COUNTER_SELECT
+	 */
+	private static final byte[] COUNTED_INSTRUCTIONS = {INS_SELECT, INS_CREATE_FILE, INS_GET_RESPONSE, INS_GET_DATA,
+			INS_PUT_DATA, INS_READ_BINARY, INS_UPDATE_BINARY, INS_GET_CHALLENGE, INS_EXTERNAL_AUTHENTICATE};
+
+	/**
+	 * Certain values starting with 0x3F are reserved in ISO7816-4.
+	 */
+	protected static final byte ISO7816_FILE_RESERVED_P1 = (byte)0x3F;
+
+	/**
+	 * Used with the reserved P1 value to indicate the current dedicated file
+	 */
+	private static final byte ISO7816_CURRENT_DEDICATED_FILE_P2 = (byte)0xFF;
+
+	/**
+	 * Used with the reserved P1 value to indicate the master file
+	 */
+	private static final byte ISO7816_MASTER_FILE_P2 = (byte)0x00;
+
+	/**
+	 * SELECT: select the MF, or a child or the parent of the current DF, by file identifier
+	 */
+	private static final byte SELECT_P1_BY_IDENTIFIER = (byte)0x00;
+
+	/**
+	 * SELECT: select a child DF of the current DF by file identifier
+	 */
+	private static final byte SELECT_P1_CHILD_DF = (byte)0x01;
+
+	/**
+	 * SELECT: select an EF of the current DF by file identifier
+	 */
+	private static final byte SELECT_P1_CHILD_EF = (byte)0x02;
+
+	/**
+	 * SELECT: select the parent of the current DF
+	 */
+	private static final byte SELECT_P1_PARENT_DF = (byte)0x03;
+
+	/**
+	 * SELECT: select a DF by name
+	 */
+	private static final byte SELECT_P1_BY_NAME = (byte)0x04;
+
+	/**
+	 * SELECT: select a file by path from the MF, excluding the identifier of the MF
+	 */
+	private static final byte SELECT_P1_PATH_FROM_MF = (byte)0x08;
+
+	/**
+	 * SELECT: select a file by path from the current DF, excluding the identifier of the current DF
+	 */
+	private static final byte SELECT_P1_PATH_FROM_CURRENT_DF = (byte)0x09;
+
+	/**
+	 * SELECT: return the FCI template
+	 */
+	private static final byte SELECT_P2_RETURN_FCI = (byte)0x00;
+
+	/**
+	 * SELECT: return no response data
+	 */
+	private static final byte SELECT_P2_RETURN_NONE = (byte)0x0C;
+
+	/**
+	 * Reserved file identifier that can never be assigned to a file
+	 */
+	private static final short FILE_IDENTIFIER_RESERVED = (short)0xFFFF;
+
+	/**
+	 * File descriptor byte of a dedicated file.  See ISO/IEC 7816-4:2020(E) 7.4.5, Table 12.
+	 */
+	private static final byte FILE_DESCRIPTOR_DF = (byte)0x38;
+
+	/**
+	 * File descriptor byte of an elementary file holding BER-TLV data objects
+	 */
+	private static final byte FILE_DESCRIPTOR_BER_TLV_EF = (byte)0x39;
+
+	/**
+	 * File already exists.  See ISO/IEC 7816-4:2020(E) 5.6, Table 6.
+	 */
+	private static final short ISO7816_SW_FILE_ALREADY_EXISTS = (short)0x6A89;
+
+	/**
+	 * DF name already exists.  See ISO/IEC 7816-4:2020(E) 5.6, Table 6.
+	 */
+	private static final short ISO7816_SW_DF_NAME_ALREADY_EXISTS = (short)0x6A8A;
+
+	/**
+	 * Referenced data or reference data not found.  See ISO/IEC 7816-4:2020(E) 5.6, Table 6.
+	 */
+	private static final short ISO7816_SW_REFERENCED_DATA_NOT_FOUND = (short)0x6A88;
+
+	/**
+	 * Status word for commands incompatible with the structure of the data object
+	 */
+	private static final short ISO7816_SW_COMMAND_INCOMPATIBLE = (short)0x6981;
+
+	/**
+	 * This Data Object Tag indicates a Private (non-ISO7816), primitive (doesn't contain other tags) object.
+	 */
+	private static final byte[] TAG_DO_ATS = new byte[] {(byte)0xDE};
+
+	/**
+	 * First byte of the private tags DF20 to DF2F, which are reserved for the applet's own virtual data objects.
+	 * They are never stored.
+	 */
+	private static final byte TAG_RESERVED_FIRST = (byte)0xDF;
+	private static final byte TAG_RESERVED_MIN = (byte)0x20;
+	private static final byte TAG_RESERVED_MAX = (byte)0x2F;
+
+	/**
+	 * Virtual data object holding the storage status of a file.  Read only.
+	 */
+	private static final byte[] TAG_DO_STATUS = new byte[] {(byte)0xDF, (byte)0x20};
+
+	/**
+	 * Virtual data object that requests maintenance of a file when written with an empty value.  Write only.
+	 */
+	public static final byte[] TAG_DO_MAINTENANCE = new byte[] {(byte)0xDF, (byte)0x21};
+
+	/**
+	 * Virtual data object that, written with an empty value, marks the next data object of the batch as PackBits
+	 * compressed.  Write only.
+	 */
+	public static final byte[] TAG_DO_COMPRESSED = new byte[] {(byte)0xDF, (byte)0x23};
+
+	/**
+	 * Virtual data object holding the size and high-water mark of the working RAM.  Read only.
+	 */
+	private static final byte[] TAG_DO_WORKSPACE = new byte[] {(byte)0xDF, (byte)0x22};
+
+	/**
+	 * Length of the workspace status: size and high-water mark
+	 */
+	private static final short WORKSPACE_STATUS_SIZE = 4;
+
+	/**
+	 * Virtual data object holding the applet's usage counters since install.  Read only.
+	 */
+	private static final byte[] TAG_DO_STATISTICS = new byte[] {(byte)0xDF, (byte)0x24};
+
+	/**
+	 * Virtual data object holding the secure messaging session counter, from which the session keys are derived.
+	 * Read only.
+	 */
+	private static final byte[] TAG_DO_SESSION = new byte[] {(byte)0xDF, (byte)0x25};
+
+	/**
+	 * Virtual data object that, written with a one byte value, adds access conditions to the next data object of the
+	 * batch, beyond those of its file.  Write only.
+	 */
+	public static final byte[] TAG_DO_ACCESS = new byte[] {(byte)0xDF, (byte)0x26};
+
+	/**
+	 * Length of the session counter
+	 */
+	private static final short SESSION_STATUS_SIZE = 2;
+
+	/**
+	 * Tag list, requesting several data objects in one GET DATA.  See ISO/IEC 7816-4:2020(E) 8.5.1
+	 */
+	private static final byte TAG_TAG_LIST = (byte)0x5C;
+
+	/**
+	 * Offset data object of READ BINARY and UPDATE BINARY.  See ISO/IEC 7816-4:2020(E) 11.3.3
+	 */
+	private static final byte TAG_OFFSET = (byte)0x54;
+
+	/**
+	 * Discretionary data object, holding the data written by UPDATE BINARY
+	 */
+	private static final byte TAG_DISCRETIONARY_DATA = (byte)0x53;
+
+	/**
+	 * Largest offset data object, in bytes
+	 */
+	private static final short MAX_OFFSET_SIZE = 2;
+
+	/**
+	 * File control parameters template.  See ISO/IEC 7816-4:2020(E) 7.4.2
+	 */
+	private static final byte TAG_FCP_TEMPLATE = (byte)0x62;
+
+	/**
+	 * Number of data bytes in the file.  Sets the size of the data object arena of a created file.
+	 */
+	private static final byte TAG_FCP_DATA_SIZE = (byte)0x80;
+
+	/**
+	 * Security attributes in proprietary format.  See ISO/IEC 7816-4:2020(E) 7.4.3
+	 * One byte of DataObject access bits, which become the access conditions of the created file.
+	 */
+	private static final byte TAG_FCP_SECURITY_ATTRIBUTES = (byte)0x86;
+
+	/**
+	 * File descriptor.  See ISO/IEC 7816-4:2020(E) 7.4.5
+	 */
+	private static final byte TAG_FCP_FILE_DESCRIPTOR = (byte)0x82;
+
+	/**
+	 * File control template.  See ISO/IEC 7816-4:2020(E) 7.4.2
+	 */
+	private static final byte[] TAG_FCI_TEMPLATE = {(byte)0x6F};
+
+	/**
+	 * File identifier tag.  See ISO/IEC 7816-4:2020(E) 7.4.3
+	 */
+	private static final byte[] TAG_FCI_FILE_IDENTIFIER = {(byte)0x83};
+
+	/**
+	 * Dedicated File Name tag.  See ISO/IEC 7816-4:2020(E) 7.4.3
+	 */
+	private static final byte[] TAG_FCI_DF_NAME = {(byte)0x84};
+
+	/**
+	 * Configuration: maximum number of Data Objects the Master File can hold.
+	 * Each configuration entry may be set at install time, with the tag 0x80 plus its index.
+	 */
+	private static final byte CONFIG_MF_MAX_DATA_OBJECTS = 0;
+
+	/**
+	 * Configuration: size of the Master File's data object storage arena, in bytes.
+	 */
+	private static final byte CONFIG_MF_ARENA_SIZE = 1;
+
+	/**
+	 * Configuration: maximum number of nested data objects indexed within the Master File's constructed data objects.
+	 */
+	private static final byte CONFIG_MF_MAX_NODES = 2;
+
+	/**
+	 * Configuration: maximum number of Data Objects a created file can hold.
+	 */
+	private static final byte CONFIG_CHILD_MAX_DATA_OBJECTS = 3;
+
+	/**
+	 * Configuration: default size of a created file's data object storage arena, in bytes.
+	 */
+	private static final byte CONFIG_CHILD_ARENA_SIZE = 4;
+
+	/**
+	 * Configuration: maximum number of nested data objects indexed within a created file's constructed data objects.
+	 */
+	private static final byte CONFIG_CHILD_MAX_NODES = 5;
+
+	/**
+	 * Configuration: maximum number of files a dedicated file can contain.
+	 */
+	private static final byte CONFIG_MAX_CHILDREN = 6;
+
+	/**
+	 * Configuration: working RAM size, in bytes.
+	 */
+	private static final byte CONFIG_WORKSPACE_SIZE = 7;
+
+	/**
+	 * Configuration: access conditions of the Master File, as DataObject access bits.
+	 */
+	private static final byte CONFIG_MF_ACCESS = 8;
+
+	/**
+	 * Configuration: zero to scan each file's data objects, most read first, instead of indexing their tags by hash.
+	 */
+	private static final byte CONFIG_TAG_INDEX = 9;
+
+	private static final byte CONFIG_SIZE = 10;
+
+	/**
+	 * Value of each configuration entry when it is not set at install time
+	 */
+	private static final short[] CONFIG_DEFAULTS = {8, 2048, 32, 8, 512, 16, 8, 128, DataObject.ACCESS_NONE, 1};
+
+	/**
+	 * Smallest value each configuration entry may be set to.  The workspace must hold an FCI template or the usage
+	 * counters alongside the PUT DATA header buffer.
+	 */
+	private static final short[] CONFIG_MINIMUMS = {1, 1, 0, 1, 1, 0, 0, 72, DataObject.ACCESS_NONE, 0};
+
+	/**
+	 * Tag of the first configuration entry in the install parameters
+	 */
+	private static final byte TAG_CONFIG_FIRST = (byte)0x80;
+
+	/**
+	 * Tag of the secure messaging static key in the install parameters
+	 */
+	private static final byte TAG_CONFIG_STATIC_KEY = (byte)0xC0;
+
+	/**
+	 * Tag of the external authentication key in the install parameters
+	 */
+	private static final byte TAG_CONFIG_AUTHENTICATION_KEY = (byte)0xC1;
+
+	/**
+	 * Longest DF name.  See ISO/IEC 7816-4:2020(E) 7.4.3
+	 */
+	private static final short MAX_DF_NAME_SIZE = 16;
+
+	/**
+	 * Capacities this instance was installed with
+	 */
+	private final short[] configuration;
+
+	/**
+	 * Working RAM, lent to handlers a command at a time
+	 */
+	private final Workspace workspace;
+
+	/**
+	 * Usage counters, readable through a virtual data object
+	 */
+	private final Statistics statistics;
+
+	/**
+	 * Protects commands and responses, and holds the static key
+	 */
+	private final SecureMessaging secureMessaging;
+
+	/**
+	 * Authenticates the terminal, and holds the authentication key
+	 */
+	private final ExternalAuthentication authentication;
+
+	/**
+	 * Contains the Application Identifier (AID) the applet was installed with
+	 */
+	private byte[] applicationId;
+
+	/**
+	 * Cursor for decoding data objects in command handlers
+	 */
+	private final short[] derCursor;
+
+	/**
+	 * Parser for the data objects of PUT DATA commands
+	 */
+	private final DataObjectReceiver receiver;
+
+	/**
+	 * Holds response data waiting for GET RESPONSE
+	 */
+	private final ResponseChain responseChain;
+
+	/**
+	 * Files found by recent SELECT commands
+	 */
+	private final SelectionCache selectionCache;
+
+	/**
+	 * RNG used by the applet
+	 */
+	private final RandomData random;
+
+	/**
+	 * Master file, as defined by ISO7816-4.  Automatically selected when the applet is selected.
+	 */
+	private final DedicatedFile masterFile;
+
+	/**
+	 * Currently selected Dedicated File (DF) and Application Dedicated File (ADF) of each logical channel
+	 */
+	private final Object[] selection;
+
+	/**
+	 * Called when the applet is installed
+	 * @param bArray Byte array containing the Applet ID, Applet Information and Applet Install Parameters
+	 * @param bOffset Offset within the buffer for the Applet information
+	 * @param bLength Length of the parameter data in bArray
+	 */
+	public static void install(byte[] bArray, short bOffset, byte bLength) 
+	{
+		new IsoscelesApplet(bArray, bOffset, bLength);
+	}
+
+	/**
+	 * Isosceles ISO7816-4 pplet
+	 * @param buffer Installation details and parameters
+	 * @param offset Offset for installation details and parameters
+	 * @param length Length of installation details and parameters
+	 */
+	public IsoscelesApplet(byte[] buffer, short offset, byte length)
+	{
+		// Save the Application ID
+		byte applicationIdLen = buffer[offset];
+		applicationId = new byte[applicationIdLen];
+		Util.arrayCopy(buffer, (short)(offset+1), applicationId, OFFSET_NONE, applicationIdLen);
+
+		// Size everything from the install parameters
+		derCursor = JCSystem.makeTransientShortArray(DerParser.CURSOR_SIZE, JCSystem.CLEAR_ON_DESELECT);
+		random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+		secureMessaging = new SecureMessaging();
+		authentication = new ExternalAuthentication(random, MAX_CHANNELS);
+		configuration = ParseInstallParameters(buffer, offset, length);
+		workspace = new Workspace(configuration[CONFIG_WORKSPACE_SIZE], MAX_CHANNELS);
+		statistics = new Statistics();
+		short maxObjects = configuration[CONFIG_MF_MAX_DATA_OBJECTS];
+		if (configuration[CONFIG_CHILD_MAX_DATA_OBJECTS] > maxObjects) {
+			maxObjects = configuration[CONFIG_CHILD_MAX_DATA_OBJECTS];
+		}
+		receiver = new DataObjectReceiver(workspace, statistics, maxObjects, configuration[CONFIG_TAG_INDEX] != 0);
+
+		// Allocate a new master file and provide the Application ID
+		masterFile = new DedicatedFile(configuration[CONFIG_MF_MAX_DATA_OBJECTS], configuration[CONFIG_MF_ARENA_SIZE],
+				configuration[CONFIG_MF_MAX_NODES], configuration[CONFIG_MAX_CHILDREN],
+				new byte[]{ISO7816_FILE_RESERVED_P1, ISO7816_MASTER_FILE_P2}, applicationId,
+				configuration[CONFIG_TAG_INDEX] != 0);
+		masterFile.setFci(BuildFci(masterFile));
+		masterFile.setAccessConditions((byte)configuration[CONFIG_MF_ACCESS]);
+
+		// Each logical channel selects the master file when the applet is selected on it
+		selection = JCSystem.makeTransientObjectArray((short)(MAX_CHANNELS * SELECTION_SIZE), JCSystem.CLEAR_ON_DESELECT);
+
+		responseChain = new ResponseChain(statistics, secureMessaging, MAX_CHANNELS);
+		selectionCache = new SelectionCache();
+		register();
+	}
+
+	/**
+	 * Read the configuration from the applet data of the install parameters.
+	 * The applet data is a sequence of data objects, each setting one configuration entry: tag 0x80 plus the entry
+	 * index, and a one or two byte value.  Entries that are not present keep their default.  The secure messaging
+	 * static key, if any, is given with tag 0xC0, and the external authentication key with tag 0xC1.
+	 * @param buffer Installation details and parameters
+	 * @param offset Offset for installation details and parameters
+	 * @param length Length of installation details and parameters
+	 * @return Configuration
+	 */
+	private short[] ParseInstallParameters(byte[] buffer, short offset, byte length) {
+		short[] config = new short[CONFIG_SIZE];
+		for (short i = 0; i < CONFIG_SIZE; i++) {
+			config[i] = CONFIG_DEFAULTS[i];
+		}
+
+		// [AID Length] [AID] [Control Info Length] [Control Info] [Applet Data Length] [Applet Data]
+		short end = (short)(offset + (short)(length & 0xFF));
+		short dataOffset = (short)(offset + 1 + buffer[offset]);
+		if (dataOffset >= end) {
+			return config;
+		}
+		dataOffset += (short)(1 + (buffer[dataOffset] & 0xFF));
+		if (dataOffset >= end) {
+			return config;
+		}
+		short dataEnd = (short)(dataOffset + 1 + (buffer[dataOffset] & 0xFF));
+		if (dataEnd > end) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		dataOffset++;
+
+		while (dataOffset < dataEnd) {
+			dataOffset = DerParser.ReadTlv(buffer, dataOffset, dataEnd, derCursor);
+			if (derCursor[DerParser.CURSOR_TAG] == (short)(TAG_CONFIG_STATIC_KEY & 0xFF)) {
+				if (derCursor[DerParser.CURSOR_VALUE_LENGTH] != SecureMessaging.BLOCK_SIZE) {
+					ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+				}
+				secureMessaging.setStaticKey(buffer, derCursor[DerParser.CURSOR_VALUE_OFFSET]);
+				continue;
+			} else if (derCursor[DerParser.CURSOR_TAG] == (short)(TAG_CONFIG_AUTHENTICATION_KEY & 0xFF)) {
+				if (derCursor[DerParser.CURSOR_VALUE_LENGTH] != ExternalAuthentication.CHALLENGE_SIZE) {
+					ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+				}
+				authentication.setKey(buffer, derCursor[DerParser.CURSOR_VALUE_OFFSET]);
+				continue;
+			}
+			short index = (short)(derCursor[DerParser.CURSOR_TAG] - (short)(TAG_CONFIG_FIRST & 0xFF));
+			short valueOffset = derCursor[DerParser.CURSOR_VALUE_OFFSET];
+			short valueLength = derCursor[DerParser.CURSOR_VALUE_LENGTH];
+			if (derCursor[DerParser.CURSOR_TAG_SIZE] != 1 || index < 0 || index >= CONFIG_SIZE) {
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+
+			short value = 0;
+			if (valueLength == 1) {
+				value = (short)(buffer[valueOffset] & 0xFF);
+			} else if (valueLength == 2) {
+				value = Util.getShort(buffer, valueOffset);
+			} else {
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+			if (value < CONFIG_MINIMUMS[index]
+					|| (index == CONFIG_MF_ACCESS && (value & ~DataObject.MASK_ACCESS) != 0)) {
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+			config[index] = value;
+		}
+		return config;
+	}
+
+	/**
+	 * Called when the applet is selected, unless it is being selected on another logical channel
+	 * @return true if the applet accepts selection
+	 */
+	public boolean select() {
+		return select(false);
+	}
+
+	/**
+	 * Called when the applet is selected on a logical channel.  The master file becomes current on that channel, which
+	 * is unauthenticated, and a new secure messaging session starts unless another channel holds one.
+	 * @param appInstAlreadyActive true if the applet is already selected on another logical channel
+	 * @return true if the applet accepts selection
+	 */
+	public boolean select(boolean appInstAlreadyActive) {
+		byte channel = JCSystem.getAssignedChannel();
+		if (channel >= MAX_CHANNELS) {
+			return false;
+		}
+		ResetSelection(channel);
+		secureMessaging.beginSession(channel);
+		authentication.reset(channel);
+		return true;
+	}
+
+	/**
+	 * Called when the applet is deselected, unless it remains selected on another logical channel
+	 */
+	public void deselect() {
+		deselect(false);
+	}
+
+	/**
+	 * Called when the applet is deselected on a logical channel.  That channel's selection and authentication state
+	 * is discarded, and its secure messaging session ends.
+	 * @param appInstStillActive true if the applet remains selected on another logical channel
+	 */
+	public void deselect(boolean appInstStillActive) {
+		statistics.flush();
+		byte channel = JCSystem.getAssignedChannel();
+		if (channel < MAX_CHANNELS) {
+			short entry = (short)(channel * SELECTION_SIZE);
+			selection[(short)(entry + SELECTION_DEDICATED_FILE)] = null;
+			selection[(short)(entry + SELECTION_APPLICATION_DEDICATED_FILE)] = null;
+			authentication.reset(channel);
+			responseChain.reset(channel);
+			workspace.drop(channel);
+			receiver.reset(channel);
+			if (secureMessaging.isSessionChannel(channel)) {
+				secureMessaging.endSession();
+			}
+		}
+	}
+
+	/**
+	 * Make the master file current on a logical channel
+	 * @param channel Logical channel
+	 */
+	private void ResetSelection(byte channel) {
+		short entry = (short)(channel * SELECTION_SIZE);
+		selection[(short)(entry + SELECTION_DEDICATED_FILE)] = masterFile;
+		selection[(short)(entry + SELECTION_APPLICATION_DEDICATED_FILE)] = masterFile;
+	}
+
+	/**
+	 * Get the current dedicated file of the logical channel of the command being processed
+	 * @return Current dedicated file
+	 */
+	private DedicatedFile GetCurrentDedicatedFile() {
+		return (DedicatedFile)selection[(short)(APDU.getCLAChannel() * SELECTION_SIZE + SELECTION_DEDICATED_FILE)];
+	}
+
+	/**
+	 * Set the current dedicated file of the logical channel of the command being processed
+	 * @param file New current dedicated file
+	 */
+	private void SetCurrentDedicatedFile(DedicatedFile file) {
+		selection[(short)(APDU.getCLAChannel() * SELECTION_SIZE + SELECTION_DEDICATED_FILE)] = file;
+	}
+
+	/**
+	 * Remove the logical channel number from a class byte, so that commands on every channel are checked alike.
+	 * Further interindustry class bytes are mapped to the first interindustry class byte with the same meaning.
+	 * @param cla Class byte
+	 * @return Class byte for the basic logical channel
+	 */
+	private static byte GetClass(byte cla) {
+		if ((cla & CLA_FURTHER_INTERINDUSTRY) == 0) {
+			return (byte)(cla & ~CLA_FIRST_CHANNEL_MASK);
+		}
+		byte mapped = (byte)(cla & CLA_COMMAND_CHAINING);
+		if ((cla & CLA_FURTHER_SECURE_MESSAGING) != 0) {
+			mapped |= CLA_FIRST_SECURE_MESSAGING;
+		}
+		return mapped;
+	}
+
+	/**
+	 * Process an incoming Application Protocol Data Unit (APDU)
+	 * @param apdu APDU to Process
+	 */
+	public void process(APDU apdu)
+	{
+		statistics.countCommand(GetCommandCounter(apdu.getBuffer()[ISO7816.OFFSET_INS]));
+
+		short sw = ISO7816.SW_NO_ERROR;
+		try {
+			ProcessCommand(apdu);
+		} catch (ISOException e) {
+			sw = e.getReason();
+		} catch (RuntimeException e) {
+			statistics.add(Statistics.COUNTER_ERRORS, (short)1);
+			throw e;
+		}
+
+		// A protected command that succeeds without response data still has a protected status
+		if (sw == ISO7816.SW_NO_ERROR && secureMessaging.isCommandProtected() && !secureMessaging.isResponseProtected()) {
+			responseChain.send(apdu, apdu.getBuffer(), OFFSET_NONE, (short)0);
+		}
+
+		// Working RAM that a pending response is sent from must outlive commands on the other channels
+		byte channel = APDU.getCLAChannel();
+		if (channel < MAX_CHANNELS) {
+			if (responseChain.isPending()) {
+				workspace.hold(channel);
+			} else {
+				workspace.drop(channel);
+			}
+		}
+
+		// Count every status word other than success or more data to come as an error
+		if (sw != ISO7816.SW_NO_ERROR) {
+			if ((short)(sw & (short)0xFF00) != ISO7816.SW_BYTES_REMAINING_00) {
+				statistics.add(Statistics.COUNTER_ERRORS, (short)1);
+			}
+			ISOException.throwIt(sw);
+		}
+	}
+
+	/**
+	 * Get the usage counter of an instruction
+	 * @param ins Instruction byte
+	 * @return Counter, or Statistics.COUNTER_OTHER for an unsupported instruction
+	 */
+	private static byte GetCommandCounter(byte ins) {
+		for (byte counter = 0; counter < (byte)COUNTED_INSTRUCTIONS.length; counter++) {
+			if (COUNTED_INSTRUCTIONS[counter] == ins) {
+				return counter;
+			}
+		}
+		return Statistics.COUNTER_OTHER;
+	}
+
+	/**
+	 * Dispatch a command to its handler
+	 * @param apdu APDU to process
+	 */
+	private void ProcessCommand(APDU apdu)
+	{
+		byte[] apduBuffer = apdu.getBuffer();
+		byte ins = apduBuffer[ISO7816.OFFSET_INS];
+
+		// We only support inter-industry classes
+		if (!apdu.isISOInterindustryCLA()) {
+				ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		}
+
+		// Only channels the applet was selected on have selection state
+		byte channel = APDU.getCLAChannel();
+		if (channel >= MAX_CHANNELS) {
+			ISOException.throwIt(ISO7816.SW_LOGICAL_CHANNEL_NOT_SUPPORTED);
+		}
+
+		// Chained commands and pending responses must continue with the very next command on their channel.  Those of
+		// other channels are left as they are.
+		if (ins != INS_PUT_DATA) {
+			receiver.reset(channel);
+		}
+		if (ins != INS_GET_RESPONSE) {
+			responseChain.reset();
+			workspace.drop(channel);
+		}
+
+		// Working RAM, except what pending responses are sent from, and the protection of the previous command only
+		// last for a single command
+		workspace.release();
+		secureMessaging.beginCommand();
+
+		// If the applet is being selected, send the ATS for the master file
+		if (selectingApplet()) {
+			ResetSelection(channel);
+			SendFci(apdu, masterFile);
+			return;
+		} else if (GetCurrentDedicatedFile() == null) {
+			ISOException.throwIt(ISO7816.SW_LOGICAL_CHANNEL_NOT_SUPPORTED);
+		}
+
+		// Protected commands are checked and deciphered before they are handled.  With a static key, writes must be,
+		// and with an authentication key, writes need the terminal to have authenticated.
+		boolean write = ins == INS_CREATE_FILE || ins == INS_PUT_DATA || ins == INS_UPDATE_BINARY;
+		if ((GetClass(apduBuffer[ISO7816.OFFSET_CLA]) & CLA_FIRST_SECURE_MESSAGING) != 0) {
+			UnwrapCommand(apdu);
+		} else if (write && secureMessaging.hasStaticKey()) {
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		if (write && authentication.hasKey() && !authentication.isAuthenticated(channel)) {
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+
+		if (ins == INS_SELECT) {
+			HandleSelect(apdu);
+			return;
+		} else if (ins == INS_CREATE_FILE) {
+			HandleCreateFile(apdu);
+			return;
+		} else if (ins == INS_GET_RESPONSE) {
+			HandleGetResponse(apdu);
+			return;
+		} else if (ins == INS_GET_DATA) {
+			HandleGetData(apdu);
+			return;
+		} else if (ins == INS_PUT_DATA) {
+			HandlePutData(apdu);
+			return;
+		} else if (ins == INS_READ_BINARY) {
+			HandleReadBinary(apdu);
+			return;
+		} else if (ins == INS_UPDATE_BINARY) {
+			HandleUpdateBinary(apdu);
+			return;
+		} else if (ins == INS_GET_CHALLENGE) {
+			HandleGetChallenge(apdu);
+			return;
+		} else if (ins == INS_EXTERNAL_AUTHENTICATE) {
+			HandleExternalAuthenticate(apdu);
+			return;
+		}
+
+		ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+	}
+
+	/**
+	 * Get the access conditions the current command does not meet, as DataObject access bits.  Computed once per
+	 * command, so that deciding access to each data object takes a single AND.
+	 * @param mask Access conditions of the access mode being checked, read or write
+	 * @return Access conditions of the mode that are not met
+	 */
+	private byte GetDeniedAccess(byte mask) {
+		byte granted = DataObject.ACCESS_NONE;
+		if (secureMessaging.isCommandProtected()) {
+			granted |= DataObject.ACCESS_READ_SECURE_MESSAGING | DataObject.ACCESS_WRITE_SECURE_MESSAGING;
+		}
+		if (authentication.isAuthenticated(APDU.getCLAChannel())) {
+			granted |= DataObject.ACCESS_READ_AUTHENTICATED | DataObject.ACCESS_WRITE_AUTHENTICATED;
+		}
+		return (byte)(mask & ~granted);
+	}
+
+	/**
+	 * Receive the command data, or as much of it as fits the APDU buffer, and count all of it as received.
+	 * The data of a protected command has already been received, and deciphered.
+	 * @param apdu APDU being processed
+	 * @return Number of bytes received
+	 */
+	private short ReceiveCommandData(APDU apdu) {
+		if (secureMessaging.isCommandProtected()) {
+			return secureMessaging.getCommandLength();
+		}
+		short recvLen = apdu.setIncomingAndReceive();
+		statistics.add(Statistics.COUNTER_BYTES_RECEIVED, apdu.getIncomingLength());
+		return recvLen;
+	}
+
+	/**
+	 * Get the length of the command data, once any protection has been removed
+	 * @param apdu APDU being processed
+	 * @return Length of the command data
+	 */
+	private short GetCommandDataLength(APDU apdu) {
+		if (secureMessaging.isCommandProtected()) {
+			return secureMessaging.getCommandLength();
+		}
+		return apdu.getIncomingLength();
+	}
+
+	/**
+	 * Check and decipher a protected command.  Its unprotected data is left at the start of the command data, and its
+	 * class byte no longer indicates secure messaging.
+	 * @param apdu APDU being processed
+	 */
+	private void UnwrapCommand(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+		if ((GetClass(apduBuffer[ISO7816.OFFSET_CLA]) & CLA_SECURE_MESSAGING_MASK) != CLA_SECURE_MESSAGING_AUTHENTICATED) {
+			ISOException.throwIt(ISO7816.SW_SECURE_MESSAGING_NOT_SUPPORTED);
+		}
+
+		// The whole command must be at hand to check its MAC
+		short recvLen = ReceiveCommandData(apdu);
+		if (recvLen != apdu.getIncomingLength()) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		secureMessaging.unwrapCommand(APDU.getCLAChannel(), apduBuffer, apdu.getOffsetCdata(), recvLen, derCursor);
+		apduBuffer[ISO7816.OFFSET_CLA] &= ~CLA_SECURE_MESSAGING_MASK;
+	}
+
+	/**
+	 * Check whether a tag is reserved for a virtual data object
+	 * @param buffer Buffer holding the tag
+	 * @param offset Offset of the tag
+	 * @param length Length of the tag
+	 * @return true if the tag is reserved
+	 */
+	public static boolean IsReservedTag(byte[] buffer, short offset, short length) {
+		if (length != 2 || buffer[offset] != TAG_RESERVED_FIRST) {
+			return false;
+		}
+		byte second = buffer[(short)(offset + 1)];
+		return second >= TAG_RESERVED_MIN && second <= TAG_RESERVED_MAX;
+	}
+
+	/**
+	 * Resolve the file referenced by P1-P2 of a data object command.
+	 * P1-P2 holds the reserved master file (0x3F00) or current dedicated file (0x3FFF) identifier,
+	 * or the file identifier of a child of the current dedicated file.
+	 * @param p1 First byte of the file reference
+	 * @param p2 Second byte of the file reference
+	 * @return Referenced file
+	 */
+	private ElementaryFile ResolveFile(byte p1, byte p2) {
+		ElementaryFile target = null;
+		if (p1 == ISO7816_FILE_RESERVED_P1 && p2 == ISO7816_MASTER_FILE_P2) {
+			target = masterFile;
+		} else if (p1 == ISO7816_FILE_RESERVED_P1 && p2 == ISO7816_CURRENT_DEDICATED_FILE_P2) {
+			target = GetCurrentDedicatedFile();
+		} else {
+			byte[] buffer = workspace.getBuffer();
+			short offset = workspace.allocate((short)2);
+			buffer[offset] = p1;
+			buffer[(short)(offset + 1)] = p2;
+			target = GetCurrentDedicatedFile().findChild(buffer, offset);
+		}
+		if (target == null) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		return target;
+	}
+
+	/**
+	 * Select command (ISO7816-4).  Selects a file by file identifier, DF name or path.
+	 * Selecting a dedicated file makes it the current dedicated file.  See ISO/IEC 7816-4:2020(E) 11.2.2.
+	 * @param apdu APDU to process
+	 */
+	public void HandleSelect(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+		byte cla = GetClass(apduBuffer[ISO7816.OFFSET_CLA]);
+		byte p1 = apduBuffer[ISO7816.OFFSET_P1];
+		byte p2 = apduBuffer[ISO7816.OFFSET_P2];
+
+		// Check parameters
+		if (cla != ISO7816.CLA_ISO7816) {
+			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		} else if (p2 != SELECT_P2_RETURN_FCI && p2 != SELECT_P2_RETURN_NONE) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+
+		// File references are small, and always fit in the APDU buffer
+		short recvLen = ReceiveCommandData(apdu);
+		short dataOffset = apdu.getOffsetCdata();
+		if (recvLen != GetCommandDataLength(apdu)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+
+		// Absolute references resolve to the same file every time, and are cached
+		boolean absolute = p1 == SELECT_P1_BY_NAME || p1 == SELECT_P1_PATH_FROM_MF;
+		ElementaryFile file = null;
+		if (absolute) {
+			file = selectionCache.find(p1, apduBuffer, dataOffset, recvLen);
+		}
+		if (file == null) {
+			file = ResolveSelection(p1, apduBuffer, dataOffset, recvLen);
+			if (file == null) {
+				ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+			} else if (absolute) {
+				selectionCache.put(p1, apduBuffer, dataOffset, recvLen, file);
+			}
+		}
+
+		if (file instanceof DedicatedFile && file != GetCurrentDedicatedFile()) {
+			SetCurrentDedicatedFile((DedicatedFile)file);
+		}
 
-	/**
-	 * Certain values starting with 0x3F are reserved in ISO7816-4.
-	 */
-	protected static final byte ISO7816_FILE_RESERVED_P1 = (byte)0x3F;
+		if (p2 == SELECT_P2_RETURN_FCI) {
+			SendFci(apdu, file);
+		}
+	}
 
 	/**
-	 * Used with the reserved P1 value to indicate the current dedicated file
+	 * Find the file referenced by a SELECT command
+	 * @param p1 Selection control
+	 * @param buffer Buffer holding the command data
+	 * @param offset Offset of the command data
+	 * @param length Length of the command data
+	 * @return Referenced file, or null if there is none
 	 */
-	private static final byte ISO7816_CURRENT_DEDICATED_FILE_P2 = (byte)0xFF;
+	private ElementaryFile ResolveSelection(byte p1, byte[] buffer, short offset, short length) {
+		DedicatedFile current = GetCurrentDedicatedFile();
+		ElementaryFile file = null;
+		if (p1 == SELECT_P1_BY_IDENTIFIER) {
+			if (length == 0) {
+				return masterFile;
+			} else if (length != 2) {
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
+			if (masterFile.fileIdentifierEquals(buffer, offset)) {
+				return masterFile;
+			}
+			file = current.findChild(buffer, offset);
+			DedicatedFile parent = current.getParent();
+			if (file == null && parent != null && parent.fileIdentifierEquals(buffer, offset)) {
+				file = parent;
+			}
+		} else if (p1 == SELECT_P1_CHILD_DF || p1 == SELECT_P1_CHILD_EF) {
+			if (length != 2) {
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
+			file = current.findChild(buffer, offset);
+			if (file != null && (file instanceof DedicatedFile) != (p1 == SELECT_P1_CHILD_DF)) {
+				file = null;
+			}
+		} else if (p1 == SELECT_P1_PARENT_DF) {
+			if (length != 0) {
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
+			file = current.getParent();
+		} else if (p1 == SELECT_P1_BY_NAME) {
+			if (length == 0 || length > MAX_DF_NAME_SIZE) {
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
+			file = masterFile.findByName(buffer, offset, length);
+		} else if (p1 == SELECT_P1_PATH_FROM_MF || p1 == SELECT_P1_PATH_FROM_CURRENT_DF) {
+			if (length == 0 || (length & 1) != 0) {
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
 
-	/**
-	 * Used with the reserved P1 value to indicate the master file
-	 */
-	private static final byte ISO7816_MASTER_FILE_P2 = (byte)0x00;
+			// Descend one file identifier at a time.  Only the last file of the path may be an EF.
+			file = (p1 == SELECT_P1_PATH_FROM_MF) ? masterFile : current;
+			short end = (short)(offset + length);
+			for (; file != null && offset < end; offset += 2) {
+				file = (file instanceof DedicatedFile) ? ((DedicatedFile)file).findChild(buffer, offset) : null;
+			}
+		} else {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		return file;
+	}
 
 	/**
-	 * This Data Object Tag indicates a Private (non-ISO7816), primitive (doesn't contain other tags) object.
+	 * Create File command (ISO7816-4).  Creates a dedicated file, or an elementary file holding data objects,
+	 * within the current dedicated file.  The command data field holds the FCP template of the new file, which must
+	 * contain its file identifier (0x83) and file descriptor (0x82), and may contain a DF name (0x84) and the size of
+	 * its data object storage (0x80).  A created dedicated file becomes the current dedicated file.
+	 * See ISO/IEC 7816-9:2017(E) 6.1.
+	 * @param apdu APDU to process
 	 */
-	private static final byte[] TAG_DO_ATS = new byte[] {(byte)0xDE};
+	public void HandleCreateFile(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+		byte cla = GetClass(apduBuffer[ISO7816.OFFSET_CLA]);
 
-	/**
-	 * File control template.  See ISO/IEC 7816-4:2020(E) 7.4.2
-	 */
-	private static final byte[] TAG_FCI_TEMPLATE = {(byte)0x6F};
+		// Check parameters
+		if (cla != ISO7816.CLA_ISO7816) {
+			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		} else if (apduBuffer[ISO7816.OFFSET_P1] != 0 || apduBuffer[ISO7816.OFFSET_P2] != 0) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
 
-	/**
-	 * File identifier tag.  See ISO/IEC 7816-4:2020(E) 7.4.3
-	 */
-	private static final byte[] TAG_FCI_FILE_IDENTIFIER = {(byte)0x83};
+		// The FCP template is small, and always fits in the APDU buffer
+		short recvLen = ReceiveCommandData(apdu);
+		short dataOffset = apdu.getOffsetCdata();
+		if (recvLen == 0 || recvLen != GetCommandDataLength(apdu)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
 
-	/**
-	 * Dedicated File Name tag.  See ISO/IEC 7816-4:2020(E) 7.4.3
-	 */
-	private static final byte[] TAG_FCI_DF_NAME = {(byte)0x84};
+		short offset = dataOffset;
+		short end = DerParser.ReadTlv(apduBuffer, offset, (short)(dataOffset + recvLen), derCursor);
+		if (derCursor[DerParser.CURSOR_TAG] != (short)(TAG_FCP_TEMPLATE & 0xFF) || end != (short)(dataOffset + recvLen)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
 
-	/**
-	 * Defines the maximum number of Data Objects the Master File can hold.
-	 */
-	private static final short MF_MAX_DATA_OBJECTS = 8;
+		// Collect the file control parameters
+		short fileIdentifierOffset = OFFSET_NONE;
+		short nameOffset = OFFSET_NONE;
+		short nameLength = 0;
+		short descriptor = -1;
+		short arenaSize = configuration[CONFIG_CHILD_ARENA_SIZE];
+		byte access = DataObject.ACCESS_NONE;
+		for (offset = derCursor[DerParser.CURSOR_VALUE_OFFSET]; offset < end; ) {
+			offset = DerParser.ReadTlv(apduBuffer, offset, end, derCursor);
+			short tag = derCursor[DerParser.CURSOR_TAG];
+			short valueOffset = derCursor[DerParser.CURSOR_VALUE_OFFSET];
+			short valueLength = derCursor[DerParser.CURSOR_VALUE_LENGTH];
+			if (tag == (short)(TAG_FCI_FILE_IDENTIFIER[0] & 0xFF) && valueLength == 2) {
+				fileIdentifierOffset = valueOffset;
+			} else if (tag == (short)(TAG_FCI_DF_NAME[0] & 0xFF) && valueLength > 0 && valueLength <= MAX_DF_NAME_SIZE) {
+				nameOffset = valueOffset;
+				nameLength = valueLength;
+			} else if (tag == (short)(TAG_FCP_FILE_DESCRIPTOR & 0xFF) && valueLength > 0) {
+				descriptor = apduBuffer[valueOffset];
+			} else if (tag == (short)(TAG_FCP_DATA_SIZE & 0xFF) && valueLength == 2) {
+				arenaSize = Util.getShort(apduBuffer, valueOffset);
+			} else if (tag == (short)(TAG_FCP_SECURITY_ATTRIBUTES & 0xFF) && valueLength == 1
+					&& (apduBuffer[valueOffset] & ~DataObject.MASK_ACCESS) == 0) {
+				access = apduBuffer[valueOffset];
+			} else {
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+		}
 
-	/**
-	 * Transitory buffer size
-	 */
-	private static final short FIXED_TEMPORARY_BUFFER_SIZE = 64;
+		// Check the new file fits in the tree
+		if (fileIdentifierOffset == OFFSET_NONE || arenaSize <= 0
+				|| (descriptor != FILE_DESCRIPTOR_DF && descriptor != FILE_DESCRIPTOR_BER_TLV_EF)
+				|| (descriptor != FILE_DESCRIPTOR_DF && nameLength != 0)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		// Creating a file writes to the current dedicated file, and a file is at least as protected as its parent
+		DedicatedFile current = GetCurrentDedicatedFile();
+		if ((current.getAccessConditions() & GetDeniedAccess(DataObject.MASK_ACCESS_WRITE)) != 0) {
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		access |= current.getAccessConditions();
+		short fileIdentifier = Util.getShort(apduBuffer, fileIdentifierOffset);
+		if (fileIdentifier == FILE_IDENTIFIER_RESERVED || apduBuffer[fileIdentifierOffset] == ISO7816_FILE_RESERVED_P1
+				|| current.fileIdentifierEquals(apduBuffer, fileIdentifierOffset)
+				|| current.findChild(apduBuffer, fileIdentifierOffset) != null) {
+			ISOException.throwIt(ISO7816_SW_FILE_ALREADY_EXISTS);
+		}
+		if (nameLength != 0 && masterFile.findByName(apduBuffer, nameOffset, nameLength) != null) {
+			ISOException.throwIt(ISO7816_SW_DF_NAME_ALREADY_EXISTS);
+		}
 
-	/**
-	 * Transitory buffer, used for writing small amounts of data back and forth.
-	 */
-	private byte[] fixedTemporaryBuffer = JCSystem.makeTransientByteArray(FIXED_TEMPORARY_BUFFER_SIZE, JCSystem.CLEAR_ON_DESELECT);
+		// Allocate the file and link it into the tree together
+		byte[] filename = new byte[2];
+		Util.arrayCopy(apduBuffer, fileIdentifierOffset, filename, OFFSET_NONE, (short)2);
+		byte[] name = null;
+		if (nameLength != 0) {
+			name = new byte[nameLength];
+			Util.arrayCopy(apduBuffer, nameOffset, name, OFFSET_NONE, nameLength);
+		}
+
+		JCSystem.beginTransaction();
+		ElementaryFile file;
+		if (descriptor == FILE_DESCRIPTOR_DF) {
+			file = new DedicatedFile(configuration[CONFIG_CHILD_MAX_DATA_OBJECTS], arenaSize,
+					configuration[CONFIG_CHILD_MAX_NODES], configuration[CONFIG_MAX_CHILDREN], filename, name,
+					configuration[CONFIG_TAG_INDEX] != 0);
+		} else {
+			file = new ElementaryFile(configuration[CONFIG_CHILD_MAX_DATA_OBJECTS], (short)0x00, arenaSize,
+					configuration[CONFIG_CHILD_MAX_NODES], filename, configuration[CONFIG_TAG_INDEX] != 0);
+		}
+		file.setFci(BuildFci(file));
+		file.setAccessConditions(access);
+		current.addChild(file);
+		JCSystem.commitTransaction();
+
+		selectionCache.clear();
+		if (file instanceof DedicatedFile) {
+			SetCurrentDedicatedFile((DedicatedFile)file);
+		}
+	}
 
 	/**
-	 * Contains the Application Identifier (AID) the applet was installed with
+	 * Get Data command (ISO7816-4).  Returns the value of a data object from a specified data file.
+	 * The command data field contains the tag of the requested data object, optionally followed by a path of tags
+	 * leading to a data object nested within it, in which case only the nested value is returned.
+	 * Alternatively, it contains a tag list, and the data objects it names are returned together.
+	 * @param apdu APDU to process
 	 */
-	private byte[] applicationId;
+	public void HandleGetData(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+		byte cla = GetClass(apduBuffer[ISO7816.OFFSET_CLA]);
+		byte p1 = apduBuffer[ISO7816.OFFSET_P1];
+		byte p2 = apduBuffer[ISO7816.OFFSET_P2];
+
+		// Check parameters
+		if (cla != ISO7816.CLA_ISO7816) {
+			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		}
+
+		// Identify the target file
+		ElementaryFile target = ResolveFile(p1, p2);
+
+		// The tag list is small, and always fits in the APDU buffer
+		short recvLen = ReceiveCommandData(apdu);
+		short dataOffset = apdu.getOffsetCdata();
+		if (recvLen == 0 || recvLen != GetCommandDataLength(apdu)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+
+		// The first tag names the data object
+		short dataEnd = (short)(dataOffset + recvLen);
+		short tagSize = DerParser.ReadTag(apduBuffer, dataOffset, dataEnd, derCursor);
+		if (tagSize == DerParser.HEADER_INCOMPLETE) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+
+		// A tag list asks for whole data objects rather than a value
+		if (derCursor[DerParser.CURSOR_TAG] == (short)(TAG_TAG_LIST & 0xFF)) {
+			SendTagList(apdu, target, dataOffset, dataEnd);
+			ISOException.throwIt(ISO7816.SW_NO_ERROR);
+		}
+
+		// Virtual data objects are generated on request, and have no nested data objects
+		if (IsReservedTag(apduBuffer, dataOffset, tagSize)) {
+			if (tagSize != recvLen) {
+				ISOException.throwIt(ISO7816_SW_REFERENCED_DATA_NOT_FOUND);
+			}
+			byte[] buffer = workspace.getBuffer();
+			short statusOffset;
+			short statusLength;
+			if (Util.arrayCompare(apduBuffer, dataOffset, TAG_DO_STATUS, OFFSET_NONE, tagSize) == 0) {
+				// The storage status describes the file, so needs its read conditions
+				if ((target.getAccessConditions() & GetDeniedAccess(DataObject.MASK_ACCESS_READ)) != 0) {
+					ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+				}
+				statusOffset = workspace.allocate(ElementaryFile.STATUS_SIZE);
+				statusLength = target.writeStatus(buffer, statusOffset);
+			} else if (Util.arrayCompare(apduBuffer, dataOffset, TAG_DO_WORKSPACE, OFFSET_NONE, tagSize) == 0) {
+				statusOffset = workspace.allocate(WORKSPACE_STATUS_SIZE);
+				statusLength = WORKSPACE_STATUS_SIZE;
+				Util.setShort(buffer, statusOffset, workspace.getSize());
+				Util.setShort(buffer, (short)(statusOffset + 2), workspace.getHighWater());
+			} else if (Util.arrayCompare(apduBuffer, dataOffset, TAG_DO_STATISTICS, OFFSET_NONE, tagSize) == 0) {
+				statusOffset = workspace.allocate(Statistics.STATUS_SIZE);
+				statusLength = statistics.writeStatus(buffer, statusOffset);
+			} else if (Util.arrayCompare(apduBuffer, dataOffset, TAG_DO_SESSION, OFFSET_NONE, tagSize) == 0) {
+				statusOffset = workspace.allocate(SESSION_STATUS_SIZE);
+				statusLength = SESSION_STATUS_SIZE;
+				Util.setShort(buffer, statusOffset, secureMessaging.getSessionCounter());
+			} else {
+				ISOException.throwIt(ISO7816_SW_REFERENCED_DATA_NOT_FOUND);
+				return;
+			}
+			responseChain.send(apdu, buffer, statusOffset, statusLength);
+			ISOException.throwIt(ISO7816.SW_NO_ERROR);
+		}
+
+		short slot = target.findSlot(apduBuffer, dataOffset, tagSize, true);
+		if (slot == ElementaryFile.SLOT_NONE) {
+			ISOException.throwIt(ISO7816_SW_REFERENCED_DATA_NOT_FOUND);
+		} else if (target.isDenied(slot, GetDeniedAccess(DataObject.MASK_ACCESS_READ))) {
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		short valueOffset = target.getValueOffset(slot);
+		short valueLength = target.getValueLength(slot);
+
+		// Any further tags descend through the structure index, one level each
+		short node = ElementaryFile.NODE_NONE;
+		for (short offset = (short)(dataOffset + tagSize); offset < dataEnd; offset += tagSize) {
+			tagSize = DerParser.ReadTag(apduBuffer, offset, dataEnd, derCursor);
+			if (tagSize == DerParser.HEADER_INCOMPLETE) {
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+			node = target.findNode(slot, node, apduBuffer, offset, tagSize);
+			if (node == ElementaryFile.NODE_NONE) {
+				ISOException.throwIt(ISO7816_SW_REFERENCED_DATA_NOT_FOUND);
+			}
+			valueOffset = target.getNodeValueOffset(slot, node);
+			valueLength = target.getNodeValueLength(node);
+		}
+
+		// Stream the value straight out of the file's arena, without staging it in RAM
+		if (node == ElementaryFile.NODE_NONE && target.isCompressed(slot)) {
+			responseChain.appendCompressed(target.getArena(), valueOffset, target.getExpandedLength(slot));
+			responseChain.sendNext(apdu);
+			ISOException.throwIt(ISO7816.SW_NO_ERROR);
+		}
+		responseChain.send(apdu, target.getArena(), valueOffset, valueLength);
+		ISOException.throwIt(ISO7816.SW_NO_ERROR);
+	}
 
 	/**
-	 * RNG used by the applet
+	 * Send the data objects named by a tag list, in the order listed, as one response.
+	 * Each value is sent straight out of the file's arena, and only its header is encoded in the workspace.
+	 * @param apdu APDU to respond to
+	 * @param target File holding the data objects
+	 * @param offset Offset of the tag list in the APDU buffer
+	 * @param end Offset just past the command data
 	 */
-	private final RandomData random;
+	private void SendTagList(APDU apdu, ElementaryFile target, short offset, short end) {
+		byte[] apduBuffer = apdu.getBuffer();
+		if (DerParser.ReadTlv(apduBuffer, offset, end, derCursor) != end || derCursor[DerParser.CURSOR_VALUE_LENGTH] == 0) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		offset = derCursor[DerParser.CURSOR_VALUE_OFFSET];
+
+		byte[] buffer = workspace.getBuffer();
+		byte denied = GetDeniedAccess(DataObject.MASK_ACCESS_READ);
+		while (offset < end) {
+			short tagSize = DerParser.ReadTag(apduBuffer, offset, end, derCursor);
+			if (tagSize == DerParser.HEADER_INCOMPLETE) {
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+			short slot = target.findSlot(apduBuffer, offset, tagSize, true);
+			if (slot == ElementaryFile.SLOT_NONE) {
+				ISOException.throwIt(ISO7816_SW_REFERENCED_DATA_NOT_FOUND);
+			} else if (target.isDenied(slot, denied)) {
+				ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+			}
+
+			// The tag list is overwritten by the response, so the header takes its copy of the tag now
+			short valueLength = target.getExpandedLength(slot);
+			short header = workspace.allocate((short)(tagSize + DerParser.MAX_LENGTH_SIZE));
+			short headerEnd = DerParser.WriteHeader(buffer, header, apduBuffer, offset, tagSize, valueLength);
+			responseChain.append(buffer, header, (short)(headerEnd - header));
+			if (target.isCompressed(slot)) {
+				responseChain.appendCompressed(target.getArena(), target.getValueOffset(slot), valueLength);
+			} else {
+				responseChain.append(target.getArena(), target.getValueOffset(slot), valueLength);
+			}
+			offset += tagSize;
+		}
+		responseChain.sendNext(apdu);
+	}
 
 	/**
-	 * Master file, as defined by ISO7816-4.  Automatically selected when the applet is selected.
+	 * Read Binary command (ISO7816-4), odd instruction.  Returns up to Le bytes of the value of a data object, starting
+	 * at an offset, so that a large value can be read in slices.  The command data field contains a tag list naming
+	 * the data object, followed by an offset data object.
+	 * @param apdu APDU to process
 	 */
-	private final DedicatedFile masterFile;
+	public void HandleReadBinary(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+		if (GetClass(apduBuffer[ISO7816.OFFSET_CLA]) != ISO7816.CLA_ISO7816) {
+			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		}
+		ElementaryFile target = ResolveFile(apduBuffer[ISO7816.OFFSET_P1], apduBuffer[ISO7816.OFFSET_P2]);
+
+		// The references are small, and always fit in the APDU buffer
+		short recvLen = ReceiveCommandData(apdu);
+		short dataOffset = apdu.getOffsetCdata();
+		if (recvLen == 0 || recvLen != GetCommandDataLength(apdu)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		short dataEnd = (short)(dataOffset + recvLen);
+
+		short slot = ReadSliceReference(target, apduBuffer, dataOffset, dataEnd, DataObject.MASK_ACCESS_READ);
+		short next = (short)(derCursor[DerParser.CURSOR_VALUE_OFFSET] + derCursor[DerParser.CURSOR_VALUE_LENGTH]);
+		short sliceOffset = ReadSliceOffset(apduBuffer, next, dataEnd);
+		if ((short)(derCursor[DerParser.CURSOR_VALUE_OFFSET] + derCursor[DerParser.CURSOR_VALUE_LENGTH]) != dataEnd) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		short valueLength = target.getValueLength(slot);
+		if (sliceOffset > valueLength) {
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+		}
+
+		// Only the requested range is sent, straight out of the file's arena
+		responseChain.sendTruncated(apdu, target.getArena(), (short)(target.getValueOffset(slot) + sliceOffset),
+				(short)(valueLength - sliceOffset));
+		ISOException.throwIt(ISO7816.SW_NO_ERROR);
+	}
 
 	/**
-	 * Currently selected Dedicated File (DF)
+	 * Update Binary command (ISO7816-4), odd instruction.  Overwrites part of the value of a primitive data object,
+	 * starting at an offset, without moving the rest of it.  The command data field contains a tag list naming the
+	 * data object, an offset data object and a discretionary data object holding the bytes to write, which must lie
+	 * within the current value.
+	 * @param apdu APDU to process
 	 */
-	private DedicatedFile currentDedicatedFile;
+	public void HandleUpdateBinary(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+		if (GetClass(apduBuffer[ISO7816.OFFSET_CLA]) != ISO7816.CLA_ISO7816) {
+			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		}
+		ElementaryFile target = ResolveFile(apduBuffer[ISO7816.OFFSET_P1], apduBuffer[ISO7816.OFFSET_P2]);
+
+		// The patch is written in one piece, so all of it must be in the APDU buffer
+		short recvLen = ReceiveCommandData(apdu);
+		short dataOffset = apdu.getOffsetCdata();
+		if (recvLen == 0 || recvLen != GetCommandDataLength(apdu)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		short dataEnd = (short)(dataOffset + recvLen);
+
+		// The structure index of a constructed data object would no longer match its value
+		short slot = ReadSliceReference(target, apduBuffer, dataOffset, dataEnd, DataObject.MASK_ACCESS_WRITE);
+		if (DerParser.IsConstructed(apduBuffer[derCursor[DerParser.CURSOR_TAG_OFFSET]])) {
+			ISOException.throwIt(ISO7816_SW_COMMAND_INCOMPATIBLE);
+		}
+		short next = (short)(derCursor[DerParser.CURSOR_VALUE_OFFSET] + derCursor[DerParser.CURSOR_VALUE_LENGTH]);
+		short sliceOffset = ReadSliceOffset(apduBuffer, next, dataEnd);
+		next = (short)(derCursor[DerParser.CURSOR_VALUE_OFFSET] + derCursor[DerParser.CURSOR_VALUE_LENGTH]);
+		if (DerParser.ReadTlv(apduBuffer, next, dataEnd, derCursor) != dataEnd
+				|| derCursor[DerParser.CURSOR_TAG] != (short)(TAG_DISCRETIONARY_DATA & 0xFF)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		short patchOffset = derCursor[DerParser.CURSOR_VALUE_OFFSET];
+		short patchLength = derCursor[DerParser.CURSOR_VALUE_LENGTH];
+		short valueLength = target.getValueLength(slot);
+		if (sliceOffset > valueLength || patchLength > (short)(valueLength - sliceOffset)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+		}
+
+		// A patch too large to write atomically is refused rather than risk tearing
+		if (patchLength > JCSystem.getUnusedCommitCapacity()) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		target.updateValue(slot, sliceOffset, apduBuffer, patchOffset, patchLength);
+		ISOException.throwIt(ISO7816.SW_NO_ERROR);
+	}
 
 	/**
-	 * Currently selected Application Dedicated File (ADF)
+	 * Decode the tag list that names the data object of READ BINARY and UPDATE BINARY.  It must hold a single tag,
+	 * of a data object stored uncompressed, as a compressed value cannot be addressed by offset, and whose access
+	 * conditions the command meets.  Leaves the tag list in derCursor, along with the tag it holds.
+	 * @param target File holding the data object
+	 * @param buffer Buffer holding the command data
+	 * @param offset Offset of the tag list
+	 * @param end Offset just past the command data
+	 * @param mode Access conditions of the access mode, read or write.  Reads count towards the scan order.
+	 * @return Slot of the data object
 	 */
-	private DedicatedFile currentApplicationDedicatedFile;
+	private short ReadSliceReference(ElementaryFile target, byte[] buffer, short offset, short end, byte mode) {
+		short next = DerParser.ReadTlv(buffer, offset, end, derCursor);
+		if (derCursor[DerParser.CURSOR_TAG] != (short)(TAG_TAG_LIST & 0xFF)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		short tagOffset = derCursor[DerParser.CURSOR_VALUE_OFFSET];
+		short tagSize = DerParser.ReadTag(buffer, tagOffset, next, derCursor);
+		if (tagSize == DerParser.HEADER_INCOMPLETE || (short)(tagOffset + tagSize) != next) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		short slot = target.findSlot(buffer, tagOffset, tagSize, mode == DataObject.MASK_ACCESS_READ);
+		if (slot == ElementaryFile.SLOT_NONE) {
+			ISOException.throwIt(ISO7816_SW_REFERENCED_DATA_NOT_FOUND);
+		} else if (target.isDenied(slot, GetDeniedAccess(mode))) {
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		} else if (target.isCompressed(slot)) {
+			ISOException.throwIt(ISO7816_SW_COMMAND_INCOMPATIBLE);
+		}
+		return slot;
+	}
 
 	/**
-	 * Called when the applet is installed
-	 * @param bArray Byte array containing the Applet ID, Applet Information and Applet Install Parameters
-	 * @param bOffset Offset within the buffer for the Applet information
-	 * @param bLength Length of the parameter data in bArray
+	 * Decode the offset data object of READ BINARY and UPDATE BINARY, of one or two bytes.
+	 * Leaves the offset data object in derCursor.
+	 * @param buffer Buffer holding the command data
+	 * @param offset Offset of the offset data object
+	 * @param end Offset just past the command data
+	 * @return Offset within the value of the data object
 	 */
-	public static void install(byte[] bArray, short bOffset, byte bLength) 
-	{
-		new IsoscelesApplet(bArray, bOffset, bLength);
+	private short ReadSliceOffset(byte[] buffer, short offset, short end) {
+		DerParser.ReadTlv(buffer, offset, end, derCursor);
+		short valueOffset = derCursor[DerParser.CURSOR_VALUE_OFFSET];
+		short valueLength = derCursor[DerParser.CURSOR_VALUE_LENGTH];
+		if (derCursor[DerParser.CURSOR_TAG] != (short)(TAG_OFFSET & 0xFF) || valueLength == 0 || valueLength > MAX_OFFSET_SIZE) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		short sliceOffset = (valueLength == 1) ? (short)(buffer[valueOffset] & 0xFF) : Util.getShort(buffer, valueOffset);
+		if (sliceOffset < 0) {
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+		}
+		return sliceOffset;
 	}
 
 	/**
-	 * Isosceles ISO7816-4 pplet
-	 * @param buffer Installation details and parameters
-	 * @param offset Offset for installation details and parameters
-	 * @param length Length of installation details and parameters
+	 * Get Response command (ISO7816-4).  Returns the next part of a response that did not fit within Le.
+	 * @param apdu APDU to process
 	 */
-	public IsoscelesApplet(byte[] buffer, short offset, byte length)
-	{
-		// Save the Application ID
-		byte applicationIdLen = buffer[offset];
-		applicationId = new byte[applicationIdLen];
-		Util.arrayCopy(buffer, (short)(offset+1), applicationId, OFFSET_NONE, applicationIdLen);
-
-		// Allocate a new master file and provide the Application ID
-		masterFile = new DedicatedFile(MF_MAX_DATA_OBJECTS, new byte[]{ISO7816_FILE_RESERVED_P1, ISO7816_MASTER_FILE_P2}, applicationId);
+	public void HandleGetResponse(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+		byte cla = GetClass(apduBuffer[ISO7816.OFFSET_CLA]);
 
-		// Set file target pointers
-		currentDedicatedFile = masterFile;
-		currentApplicationDedicatedFile = masterFile;
+		// Check parameters
+		if (cla != ISO7816.CLA_ISO7816) {
+			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		} else if (apduBuffer[ISO7816.OFFSET_P1] != 0 || apduBuffer[ISO7816.OFFSET_P2] != 0) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
 
-		// Initialize a reference to the RNG
-		random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
-		register();
+		responseChain.sendNext(apdu);
+		ISOException.throwIt(ISO7816.SW_NO_ERROR);
 	}
 
 	/**
-	 * Process an incoming Application Protocol Data Unit (APDU)
-	 * @param apdu APDU to Process
+	 * Handles the GET CHALLENGE command.  See ISO/IEC 7816-4:2020(E) 11.5.4
+	 * The challenge is generated into working RAM, which outlives the APDU buffer if it is fetched with GET RESPONSE.
+	 * @param apdu APDU to process
 	 */
-	public void process(APDU apdu)
-	{
+	public void HandleGetChallenge(APDU apdu) {
 		byte[] apduBuffer = apdu.getBuffer();
-		byte ins = apduBuffer[ISO7816.OFFSET_INS];
+		byte cla = GetClass(apduBuffer[ISO7816.OFFSET_CLA]);
 
-		// We only support inter-industry classes
-		if (!apdu.isISOInterindustryCLA()) {
-				ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		// Check parameters
+		if (cla != ISO7816.CLA_ISO7816) {
+			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		} else if (apduBuffer[ISO7816.OFFSET_P1] != 0 || apduBuffer[ISO7816.OFFSET_P2] != 0) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		} else if (!authentication.hasKey()) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
-		// If the applet is being selected, send the ATS for the master file
-		if (selectingApplet()) {
-			SendFci(apdu, masterFile);
-			return;
-		} else if (ins == INS_PUT_DATA) {
-			HandlePutData(apdu);
-			return;
+		byte[] buffer = workspace.getBuffer();
+		short offset = workspace.allocate(ExternalAuthentication.CHALLENGE_SIZE);
+		short length = authentication.generateChallenge(APDU.getCLAChannel(), buffer, offset);
+		responseChain.send(apdu, buffer, offset, length);
+		ISOException.throwIt(ISO7816.SW_NO_ERROR);
+	}
+
+	/**
+	 * Handles the EXTERNAL AUTHENTICATE command.  See ISO/IEC 7816-4:2020(E) 11.5.2
+	 * The command data is the last challenge, enciphered with the authentication key.
+	 * @param apdu APDU to process
+	 */
+	public void HandleExternalAuthenticate(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+		byte cla = GetClass(apduBuffer[ISO7816.OFFSET_CLA]);
+		short recvLen = ReceiveCommandData(apdu);
+
+		// Check parameters
+		if (cla != ISO7816.CLA_ISO7816) {
+			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		} else if (apduBuffer[ISO7816.OFFSET_P1] != 0 || apduBuffer[ISO7816.OFFSET_P2] != 0) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		} else if (recvLen != GetCommandDataLength(apdu)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 		}
 
-		ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+		authentication.authenticate(APDU.getCLAChannel(), apduBuffer, apdu.getOffsetCdata(), recvLen);
+		ISOException.throwIt(ISO7816.SW_NO_ERROR);
 	}
 
 	/**
 	 * Put Data command (ISO7816-4).  Puts a data object into a specified data file.
+	 * The data objects may be split over a chain of commands, and a data object may span several commands.
+	 * The data objects of a command, or of a whole chain, are stored atomically: if any is rejected, none are stored.
 	 * @param apdu APDU to process
 	 */
 	public void HandlePutData(APDU apdu) {
 		// Only support the current dedicated file
 		byte[] apduBuffer = apdu.getBuffer();
-		byte cla = apduBuffer[ISO7816.OFFSET_CLA];
+		byte cla = GetClass(apduBuffer[ISO7816.OFFSET_CLA]);
 		byte p1 = apduBuffer[ISO7816.OFFSET_P1];
 		byte p2 = apduBuffer[ISO7816.OFFSET_P2];
 
 		// Get the data parameters
-		short recvLen = apdu.setIncomingAndReceive();
-		short lc = apdu.getIncomingLength();
+		short recvLen = ReceiveCommandData(apdu);
 		short dataOffset = apdu.getOffsetCdata();
 
 		// Check parameters
-		if (cla != ISO7816.CLA_ISO7816) {
+		boolean chaining = apdu.isCommandChainingCLA();
+		if ((byte)(cla & ~CLA_COMMAND_CHAINING) != ISO7816.CLA_ISO7816) {
 			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
 		}
 
 		// Identify the target file
-		DedicatedFile target = null;
-		if (p1 == ISO7816_FILE_RESERVED_P1) {
-			if (p2 == ISO7816_MASTER_FILE_P2) {
-				target = masterFile;
-			} else if (p2 == ISO7816_CURRENT_DEDICATED_FILE_P2) {
-				target = currentDedicatedFile;
-			}
+		ElementaryFile target = ResolveFile(p1, p2);
+
+		// Continue the chain in progress, or start a new one.  A command that fails ends the chain.  Only one chain
+		// may be in progress at a time, so one on another channel must finish first.
+		byte channel = APDU.getCLAChannel();
+		if (receiver.isBusy(channel)) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
-		if (target == null) {
-			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		if (!receiver.isChaining(target, channel)) {
+			receiver.begin(target, channel);
 		}
+		receiver.setChaining(false);
+		receiver.setDenied(GetDeniedAccess(DataObject.MASK_ACCESS_WRITE));
 
-		// Read the extended APDU into transient memory
-		short dataBufferOffset = 0;
-		byte[] dataBuffer = JCSystem.makeTransientByteArray(recvLen, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+		// Parse the data objects as each chunk of the extended APDU arrives
+		short remaining = GetCommandDataLength(apdu);
 		while (recvLen > 0) {
-			Util.arrayCopyNonAtomic(apduBuffer, dataOffset, dataBuffer, dataBufferOffset, recvLen);
-			dataBufferOffset += recvLen;
+			remaining -= recvLen;
+			receiver.receive(apduBuffer, dataOffset, recvLen, !chaining, !chaining && remaining == 0);
 			recvLen = apdu.receiveBytes(dataOffset);
 		}
 
-		// Reset the data buffer for parsing
-		dataBufferOffset = 0;
-
-		// Loop through all the target tags
-		while (dataBufferOffset < dataBuffer.length) {
-			// Read the tag length
-			short tagSize = DerParser.ReadTagSize(dataBuffer, dataBufferOffset);
-			short lengthSize = DerParser.ReadLengthSize(dataBuffer, (short)(dataBufferOffset + tagSize));
-			short tagLength = DerParser.ReadTagLength(dataBuffer, (short)(dataBufferOffset + tagSize));
-
-			// Allocate the new data object for storage
-			byte[] newData = new byte[tagLength];
-			Util.arrayCopyNonAtomic(dataBuffer, (short) (dataBufferOffset + tagSize + lengthSize), newData, OFFSET_NONE, tagLength);
-			target.putData(dataBuffer, dataBufferOffset, tagSize, newData);
-
-			dataBufferOffset += tagSize + lengthSize + tagLength;
+		// Further commands of the chain carry the rest of the data
+		receiver.setChaining(chaining);
+		if (chaining) {
+			ISOException.throwIt(ISO7816.SW_NO_ERROR);
 		}
 
+		// The command data must end on a data object boundary
+		if (!receiver.isIdle()) {
+			receiver.abort();
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
 
+		// Publish the whole batch at once
+		receiver.commit();
 		ISOException.throwIt(ISO7816.SW_NO_ERROR);
 	}
 
@@ -229,22 +1601,20 @@ public class IsoscelesApplet extends Applet implements ExtendedLength
 	 */
 	public void sendAts(APDU apdu, ElementaryFile elementaryFile) {
 		byte[] apduBuffer = apdu.getBuffer();
-		byte cla = apduBuffer[ISO7816.OFFSET_CLA];
-		short le = apdu.setOutgoing();
+		byte cla = GetClass(apduBuffer[ISO7816.OFFSET_CLA]);
 
-		byte[] ats = elementaryFile.getData(TAG_DO_ATS);
+		short slot = elementaryFile.findSlot(TAG_DO_ATS);
+		if (slot == ElementaryFile.SLOT_NONE) {
+			ISOException.throwIt(ISO7816_SW_REFERENCED_DATA_NOT_FOUND);
+		}
 
-		// Ensure the ATS buffer can be output, and that the class is correct
-		if (le != (short)0x00 && le < ats.length) {
-			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-		} else if (cla != ISO7816.CLA_ISO7816) {
+		// Ensure the class is correct
+		if (cla != ISO7816.CLA_ISO7816) {
 			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
 		}
-		apdu.setOutgoingLength((short)ats.length);
 
-		// Put the ATS value into the buffer
-		Util.arrayCopyNonAtomic(ats, OFFSET_NONE, apduBuffer, OFFSET_NONE, (short)ats.length);
-		apdu.sendBytes(OFFSET_NONE, (short)ats.length);
+		// Send the ATS value, chaining whatever does not fit within Le
+		responseChain.send(apdu, elementaryFile.getArena(), elementaryFile.getValueOffset(slot), elementaryFile.getValueLength(slot));
 		ISOException.throwIt(ISO7816.SW_NO_ERROR);
 	}
 
@@ -252,60 +1622,83 @@ public class IsoscelesApplet extends Applet implements ExtendedLength
 	 * Sends file control information.  Used when P2 & 0xFC is zero.
 	 * See ISO/IEC 7816 4:2020, Table 63.
 	 */
-	public void SendFci(APDU apdu, DedicatedFile dedicatedFile) {
+	public void SendFci(APDU apdu, ElementaryFile file) {
 		byte[] apduBuffer = apdu.getBuffer();
-		byte cla = apduBuffer[ISO7816.OFFSET_CLA];
-		short le = apdu.setOutgoing();
+		byte cla = GetClass(apduBuffer[ISO7816.OFFSET_CLA]);
+
+		// Verify the parameters
+		if (cla != ISO7816.CLA_ISO7816) {
+			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		}
 
-		// Dynamically generate the FCI template
-		byte[] dfName = dedicatedFile.GetName();
-		byte[] fileIdentifier = dedicatedFile.GetFilename();
+		// The template was serialized when the file was created, and is sent as it is
+		byte[] fci = file.getFci();
+		responseChain.send(apdu, fci, OFFSET_NONE, (short)fci.length);
+		ISOException.throwIt(ISO7816.SW_NO_ERROR);
+	}
+
+	/**
+	 * Serialize the file control information of a file.  The file identifier and DF name never change once a file
+	 * is created, so this is done once, at creation, and the result kept with the file.
+	 * @param file File to describe
+	 * @return FCI template
+	 */
+	private byte[] BuildFci(ElementaryFile file) {
+		// Generate the FCI template.  Only dedicated files have a name.
+		byte[] dfName = null;
+		if (file instanceof DedicatedFile) {
+			dfName = ((DedicatedFile)file).GetName();
+		}
+		byte[] fileIdentifier = file.GetFilename();
 
-		// Build the template in fixedTemporaryBuffer
-		short len = 0x00;
+		boolean hasIdentifier = (fileIdentifier != null) && Util.makeShort(fileIdentifier[0], fileIdentifier[1]) != 0;
+		boolean hasName = (dfName != null) && dfName.length > 0;
+
+		// Build the template in the workspace, sized for exactly what it will hold
+		short size = (short)(TAG_FCI_TEMPLATE.length + 1);
+		if (hasIdentifier) {
+			size += (short)(TAG_FCI_FILE_IDENTIFIER.length + 1 + fileIdentifier.length);
+		}
+		if (hasName) {
+			size += (short)(TAG_FCI_DF_NAME.length + 1 + dfName.length);
+		}
+		byte[] buffer = workspace.getBuffer();
+		short start = workspace.allocate(size);
+		short len = start;
 		short fciLenOffset;
 
 		// [FCI Template Tag] [Le]
-		Util.arrayCopy(TAG_FCI_TEMPLATE, OFFSET_NONE, fixedTemporaryBuffer, len, (short)TAG_FCI_TEMPLATE.length);
+		Util.arrayCopy(TAG_FCI_TEMPLATE, OFFSET_NONE, buffer, len, (short)TAG_FCI_TEMPLATE.length);
 		len += (short)TAG_FCI_TEMPLATE.length;
 		fciLenOffset = len;
 		len += (short)1;
 
 		// [File Identifier Tag] [Le] [File Identifier]
-		if ((fileIdentifier != null) && Util.makeShort(fileIdentifier[0], fileIdentifier[1]) != 0) {
-			Util.arrayCopy(TAG_FCI_FILE_IDENTIFIER, OFFSET_NONE, fixedTemporaryBuffer, len, (short)(TAG_FCI_FILE_IDENTIFIER.length));
+		if (hasIdentifier) {
+			Util.arrayCopy(TAG_FCI_FILE_IDENTIFIER, OFFSET_NONE, buffer, len, (short)(TAG_FCI_FILE_IDENTIFIER.length));
 			len += (short)TAG_FCI_FILE_IDENTIFIER.length;
-			fixedTemporaryBuffer[len] = (byte)(fileIdentifier.length);
+			buffer[len] = (byte)(fileIdentifier.length);
 			len += (short) 1;
-			Util.arrayCopy(fileIdentifier, OFFSET_NONE, fixedTemporaryBuffer, len, (short)(fileIdentifier.length));
+			Util.arrayCopy(fileIdentifier, OFFSET_NONE, buffer, len, (short)(fileIdentifier.length));
 			len += (short)(fileIdentifier.length);
 		}
 
 		// [DF Name Tag] [Le] [DF Name]
-		if ((dfName != null) && dfName.length > 0) {
-			Util.arrayCopy(TAG_FCI_DF_NAME, OFFSET_NONE, fixedTemporaryBuffer, len, (short)(TAG_FCI_DF_NAME.length));
+		if (hasName) {
+			Util.arrayCopy(TAG_FCI_DF_NAME, OFFSET_NONE, buffer, len, (short)(TAG_FCI_DF_NAME.length));
 			len += (short)(TAG_FCI_DF_NAME.length);
-			fixedTemporaryBuffer[len] = (byte)(dfName.length);
+			buffer[len] = (byte)(dfName.length);
 			len += (short)1;
-			Util.arrayCopy(dfName, OFFSET_NONE, fixedTemporaryBuffer, len, (short)(dfName.length));
+			Util.arrayCopy(dfName, OFFSET_NONE, buffer, len, (short)(dfName.length));
 			len += (short)(dfName.length);
 		}
 
 		// Fixup the length byte
-		fixedTemporaryBuffer[fciLenOffset] = (byte)(len - fciLenOffset - 1);
-
-		// Verify the parameters
-		if (le != (short)0x00 && le < len) {
-			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-		} else if (cla != ISO7816.CLA_ISO7816) {
-			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
-		}
+		buffer[fciLenOffset] = (byte)(len - fciLenOffset - 1);
 
-		// And send it
-		Util.arrayCopy(fixedTemporaryBuffer, OFFSET_NONE, apduBuffer, OFFSET_NONE, len);
-
-		apdu.setOutgoingLength(len);
-		apdu.sendBytes(OFFSET_NONE, len);
-		ISOException.throwIt(ISO7816.SW_NO_ERROR);
+		// And keep a persistent copy of exactly the right size
+		byte[] fci = new byte[size];
+		Util.arrayCopy(buffer, start, fci, OFFSET_NONE, size);
+		return fci;
 	}
 }
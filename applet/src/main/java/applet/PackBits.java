@@ -0,0 +1,122 @@
+package applet;
+
+import javacard.framework.Util;
+
+/**
+ * Allocation-free PackBits decoder.  A compressed value is a sequence of runs, each introduced by a header byte n:
+ * 0 to 127 copies the next n + 1 bytes as they are, -1 to -127 repeats the next byte 1 - n times, and -128 is skipped.
+ * Values are compressed by the terminal, so the card only checks and expands them.  Expansion may stop at any byte
+ * and resume later, keeping its position in a caller-provided cursor.
+ */
+public class PackBits {
+    /**
+     * Header byte that introduces no run
+     */
+    private static final byte HEADER_NONE = (byte)0x80;
+
+    /**
+     * Cursor: offset of the next compressed byte to read
+     */
+    public static final byte CURSOR_OFFSET = 0;
+
+    /**
+     * Cursor: bytes left in the current run.  Positive for a literal run, negative for a repeated byte, and zero
+     * when the next compressed byte is a header.
+     */
+    public static final byte CURSOR_RUN = 1;
+
+    /**
+     * Number of entries in a cursor
+     */
+    public static final byte CURSOR_SIZE = 2;
+
+    /**
+     * Returned by GetExpandedLength for malformed input
+     */
+    public static final short LENGTH_INVALID = -1;
+
+    /**
+     * Check a compressed value and get its length once expanded
+     * @param buffer Buffer holding the compressed value
+     * @param offset Offset of the compressed value
+     * @param length Length of the compressed value
+     * @return Expanded length, or LENGTH_INVALID if a run is cut short or the expanded value is too long
+     */
+    public static short GetExpandedLength(byte[] buffer, short offset, short length) {
+        short end = (short)(offset + length);
+        short expanded = 0;
+        while (offset < end) {
+            byte header = buffer[offset++];
+            if (header == HEADER_NONE) {
+                continue;
+            }
+
+            // A literal run is followed by its bytes, a repeated run by the byte to repeat
+            short run = (header >= 0) ? (short)(header + 1) : (short)(1 - header);
+            short stored = (header >= 0) ? run : 1;
+            if (stored > (short)(end - offset)) {
+                return LENGTH_INVALID;
+            }
+            offset += stored;
+            expanded += run;
+            if (expanded < 0) {
+                return LENGTH_INVALID;
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * Start a cursor at the beginning of a compressed value
+     * @param cursor Cursor to start
+     * @param cursorOffset Offset of the cursor within its array
+     * @param offset Offset of the compressed value
+     */
+    public static void Begin(short[] cursor, short cursorOffset, short offset) {
+        cursor[(short)(cursorOffset + CURSOR_OFFSET)] = offset;
+        cursor[(short)(cursorOffset + CURSOR_RUN)] = 0;
+    }
+
+    /**
+     * Expand the next part of a compressed value, which must hold at least as many bytes as requested
+     * @param source Buffer holding the compressed value
+     * @param cursor Position within the compressed value, advanced past the bytes expanded
+     * @param cursorOffset Offset of the cursor within its array
+     * @param dest Destination buffer
+     * @param destOffset Destination offset
+     * @param length Number of expanded bytes to write
+     */
+    public static void Expand(byte[] source, short[] cursor, short cursorOffset, byte[] dest, short destOffset,
+                              short length) {
+        short offset = cursor[(short)(cursorOffset + CURSOR_OFFSET)];
+        short run = cursor[(short)(cursorOffset + CURSOR_RUN)];
+        while (length > 0) {
+            if (run == 0) {
+                byte header = source[offset++];
+                if (header != HEADER_NONE) {
+                    run = (header >= 0) ? (short)(header + 1) : (short)(header - 1);
+                }
+                continue;
+            }
+
+            short count;
+            if (run > 0) {
+                count = (run < length) ? run : length;
+                Util.arrayCopyNonAtomic(source, offset, dest, destOffset, count);
+                offset += count;
+                run -= count;
+            } else {
+                count = ((short)-run < length) ? (short)-run : length;
+                Util.arrayFillNonAtomic(dest, destOffset, count, source[offset]);
+                run += count;
+                if (run == 0) {
+                    offset++;
+                }
+            }
+            destOffset += count;
+            length -= count;
+        }
+        cursor[(short)(cursorOffset + CURSOR_OFFSET)] = offset;
+        cursor[(short)(cursorOffset + CURSOR_RUN)] = run;
+    }
+}
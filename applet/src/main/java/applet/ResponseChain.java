@@ -0,0 +1,332 @@
+package applet;
+
+import javacard.framework.APDU;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Sends response data that may be longer than the terminal accepts in one response.
+ * Whatever does not fit within Le is kept back and returned by subsequent GET RESPONSE commands,
+ * signalled with SW 61xx.  See ISO/IEC 7816-4:2020(E) 5.3.4.
+ * <p>
+ * A response may be gathered from several arrays, such as the headers and values of a list of data objects,
+ * and is sent as if it were contiguous.  Parts stored compressed are expanded as they are sent.
+ * <p>
+ * The response to a protected command is gathered in the APDU buffer and protected as a whole, so it must fit the
+ * buffer along with its protection, and is never chained.
+ * <p>
+ * Each logical channel has its own pending response, so a command on one channel leaves the responses of the others
+ * waiting for their GET RESPONSE.
+ */
+public class ResponseChain {
+    /**
+     * Largest count that can be announced in the second byte of SW 61xx
+     */
+    private static final short MAX_ANNOUNCED_LENGTH = 0xFF;
+
+    /**
+     * Maximum number of parts a response can be gathered from, on each logical channel
+     */
+    private static final short MAX_SEGMENTS = 24;
+
+    /**
+     * Segment: offset of the next byte to send, or of the next compressed byte to read
+     */
+    private static final byte SEGMENT_OFFSET = PackBits.CURSOR_OFFSET;
+
+    /**
+     * Segment: position within the current run of a compressed segment
+     */
+    private static final byte SEGMENT_RUN = PackBits.CURSOR_RUN;
+
+    /**
+     * Segment: number of bytes still to send, once expanded
+     */
+    private static final byte SEGMENT_LENGTH = 2;
+
+    private static final byte SEGMENT_SIZE = 3;
+
+    /**
+     * State: index of the segment being sent
+     */
+    private static final byte STATE_SEGMENT = 0;
+
+    /**
+     * State: number of segments in the response
+     */
+    private static final byte STATE_SEGMENT_COUNT = 1;
+
+    /**
+     * State: number of bytes still to send, over all segments
+     */
+    private static final byte STATE_REMAINING = 2;
+
+    private static final byte STATE_SIZE = 3;
+
+    /**
+     * Arrays the pending responses are read from, one per segment, MAX_SEGMENTS for each logical channel
+     */
+    private final Object[] _sources;
+
+    /**
+     * Position within each segment of the pending responses
+     */
+    private final short[] _segments;
+
+    /**
+     * Set for each segment that is stored compressed
+     */
+    private final boolean[] _compressed;
+
+    /**
+     * Position within the pending response of each logical channel, STATE_SIZE entries each
+     */
+    private final short[] _state;
+
+    /**
+     * Counts the bytes sent
+     */
+    private final Statistics _statistics;
+
+    /**
+     * Protects the responses to protected commands
+     */
+    private final SecureMessaging _secureMessaging;
+
+    /**
+     * Allocates the chaining context.  Called once, at install time.
+     * @param statistics Usage counters to record sent bytes in
+     * @param secureMessaging Secure messaging, to protect responses with
+     * @param channels Number of logical channels to keep a pending response for
+     */
+    public ResponseChain(Statistics statistics, SecureMessaging secureMessaging, byte channels) {
+        _statistics = statistics;
+        _secureMessaging = secureMessaging;
+        short segments = (short)(channels * MAX_SEGMENTS);
+        _sources = JCSystem.makeTransientObjectArray(segments, JCSystem.CLEAR_ON_DESELECT);
+        _segments = JCSystem.makeTransientShortArray((short)(segments * SEGMENT_SIZE), JCSystem.CLEAR_ON_DESELECT);
+        _compressed = JCSystem.makeTransientBooleanArray(segments, JCSystem.CLEAR_ON_DESELECT);
+        _state = JCSystem.makeTransientShortArray((short)(channels * STATE_SIZE), JCSystem.CLEAR_ON_DESELECT);
+    }
+
+    /**
+     * Discard any pending response on the logical channel of the command being processed.  A GET RESPONSE must
+     * immediately follow the command it continues on its channel.
+     */
+    public void reset() {
+        reset(APDU.getCLAChannel());
+    }
+
+    /**
+     * Discard any pending response on a logical channel
+     * @param channel Logical channel
+     */
+    public void reset(byte channel) {
+        short state = (short)(channel * STATE_SIZE);
+        short first = (short)(channel * MAX_SEGMENTS);
+        for (short segment = 0; segment < _state[(short)(state + STATE_SEGMENT_COUNT)]; segment++) {
+            _sources[(short)(first + segment)] = null;
+        }
+        _state[(short)(state + STATE_SEGMENT)] = 0;
+        _state[(short)(state + STATE_SEGMENT_COUNT)] = 0;
+        _state[(short)(state + STATE_REMAINING)] = 0;
+    }
+
+    /**
+     * Check whether part of a response is waiting for GET RESPONSE on the logical channel of the command being
+     * processed
+     * @return true if a response is pending
+     */
+    public boolean isPending() {
+        return _state[(short)(APDU.getCLAChannel() * STATE_SIZE + STATE_REMAINING)] != 0;
+    }
+
+    /**
+     * Append a part to the response being gathered.  The source array must stay unchanged until the response is
+     * complete.
+     * @param source Array holding the part
+     * @param offset Offset of the part
+     * @param length Length of the part
+     */
+    public void append(byte[] source, short offset, short length) {
+        appendSegment(source, offset, length, false);
+    }
+
+    /**
+     * Append a PackBits compressed part to the response being gathered, to be expanded as it is sent.
+     * The source array must stay unchanged until the response is complete.
+     * @param source Array holding the compressed part
+     * @param offset Offset of the compressed part
+     * @param expandedLength Length of the part once expanded
+     */
+    public void appendCompressed(byte[] source, short offset, short expandedLength) {
+        appendSegment(source, offset, expandedLength, true);
+    }
+
+    /**
+     * Add a segment to the response being gathered
+     * @param source Array holding the segment
+     * @param offset Offset of the segment
+     * @param length Length of the segment, once expanded
+     * @param compressed true if the segment is stored compressed
+     */
+    private void appendSegment(byte[] source, short offset, short length, boolean compressed) {
+        byte channel = APDU.getCLAChannel();
+        short state = (short)(channel * STATE_SIZE);
+        short count = _state[(short)(state + STATE_SEGMENT_COUNT)];
+        short remaining = (short)(_state[(short)(state + STATE_REMAINING)] + length);
+        if (count == MAX_SEGMENTS || remaining < 0) {
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+        short index = (short)(channel * MAX_SEGMENTS + count);
+        _sources[index] = source;
+        _compressed[index] = compressed;
+        short segment = (short)(index * SEGMENT_SIZE);
+        PackBits.Begin(_segments, segment, offset);
+        _segments[(short)(segment + SEGMENT_LENGTH)] = length;
+        _state[(short)(state + STATE_SEGMENT_COUNT)] = ++count;
+        _state[(short)(state + STATE_REMAINING)] = remaining;
+    }
+
+    /**
+     * Send response data, keeping back whatever does not fit within Le.
+     * The source array must stay unchanged until the response is complete.
+     * @param apdu APDU to respond to
+     * @param source Array holding the response data
+     * @param offset Offset of the response data
+     * @param length Length of the response data
+     */
+    public void send(APDU apdu, byte[] source, short offset, short length) {
+        reset();
+        append(source, offset, length);
+        sendNext(apdu);
+    }
+
+    /**
+     * Send as much of the response data as fits within Le, and discard the rest.  Used where the terminal names the
+     * exact range it wants, so nothing is kept back for GET RESPONSE.
+     * @param apdu APDU to respond to
+     * @param source Array holding the response data
+     * @param offset Offset of the response data
+     * @param length Length of the response data
+     */
+    public void sendTruncated(APDU apdu, byte[] source, short offset, short length) {
+        reset();
+        short le = apdu.setOutgoing();
+        if (le != (short)0x00 && le < length && !_secureMessaging.isCommandProtected()) {
+            length = le;
+        }
+        append(source, offset, length);
+        sendPart(apdu, le);
+    }
+
+    /**
+     * Send the next part of the pending response, in reply to GET RESPONSE, or the start of a gathered response.
+     * A response is only continued on the logical channel it was started on.
+     * @param apdu APDU to respond to
+     */
+    public void sendNext(APDU apdu) {
+        if (_state[(short)(APDU.getCLAChannel() * STATE_SIZE + STATE_SEGMENT_COUNT)] == 0) {
+            reset();
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        sendPart(apdu, apdu.setOutgoing());
+    }
+
+    /**
+     * Send as much of the pending response as fits within Le
+     * @param apdu APDU to respond to, already set outgoing
+     * @param le Expected length, as returned by setOutgoing
+     */
+    private void sendPart(APDU apdu, short le) {
+        // An absent Le places no limit on the response.  A protected response is sent whole, or not at all.
+        byte[] buffer = apdu.getBuffer();
+        boolean protect = _secureMessaging.isCommandProtected();
+        short state = (short)(APDU.getCLAChannel() * STATE_SIZE);
+        short remaining = _state[(short)(state + STATE_REMAINING)];
+        short count = remaining;
+        if (protect) {
+            if (remaining > (short)(buffer.length - SecureMessaging.RESPONSE_OVERHEAD)) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+        } else if (le != (short)0x00 && le < remaining) {
+            count = le;
+        }
+
+        // A response that fits the APDU buffer, such as an FCI, is copied there once and sent as it lies
+        boolean inPlace = count <= (short)buffer.length;
+        if (!inPlace) {
+            apdu.setOutgoingLength(count);
+            _statistics.add(Statistics.COUNTER_BYTES_SENT, count);
+        }
+        short sent = 0;
+        short first = (short)(APDU.getCLAChannel() * MAX_SEGMENTS);
+        while (sent < count) {
+            short index = (short)(first + _state[(short)(state + STATE_SEGMENT)]);
+            short segment = (short)(index * SEGMENT_SIZE);
+            byte[] source = (byte[])_sources[index];
+            short offset = _segments[(short)(segment + SEGMENT_OFFSET)];
+            short length = _segments[(short)(segment + SEGMENT_LENGTH)];
+            if (length > (short)(count - sent)) {
+                length = (short)(count - sent);
+            }
+
+            // Compressed segments are expanded into the APDU buffer, a buffer at a time if need be
+            if (_compressed[index]) {
+                if (inPlace) {
+                    PackBits.Expand(source, _segments, segment, buffer, sent, length);
+                } else {
+                    for (short expanded = 0; expanded < length; ) {
+                        short part = (short)(length - expanded);
+                        if (part > (short)buffer.length) {
+                            part = (short)buffer.length;
+                        }
+                        PackBits.Expand(source, _segments, segment, buffer, (short)0, part);
+                        apdu.sendBytes((short)0, part);
+                        expanded += part;
+                    }
+                }
+            } else {
+                if (inPlace) {
+                    Util.arrayCopyNonAtomic(source, offset, buffer, sent, length);
+                } else {
+                    apdu.sendBytesLong(source, offset, length);
+                }
+                _segments[(short)(segment + SEGMENT_OFFSET)] += length;
+            }
+            sent += length;
+
+            // Move on once the segment is exhausted, otherwise remember how far it got
+            _segments[(short)(segment + SEGMENT_LENGTH)] -= length;
+            if (_segments[(short)(segment + SEGMENT_LENGTH)] == 0) {
+                _state[(short)(state + STATE_SEGMENT)]++;
+            }
+        }
+        if (inPlace) {
+            short length = count;
+            if (protect) {
+                length = _secureMessaging.wrapResponse(buffer, count);
+                if (le != (short)0x00 && le < length) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                }
+            }
+            apdu.setOutgoingLength(length);
+            _statistics.add(Statistics.COUNTER_BYTES_SENT, length);
+            apdu.sendBytes((short)0, length);
+        }
+
+        remaining -= count;
+        if (remaining == 0) {
+            reset();
+            return;
+        }
+
+        _state[(short)(state + STATE_REMAINING)] = remaining;
+        if (remaining > MAX_ANNOUNCED_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_BYTES_REMAINING_00);
+        }
+        ISOException.throwIt((short)(ISO7816.SW_BYTES_REMAINING_00 | remaining));
+    }
+}
@@ -0,0 +1,586 @@
+package applet;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.AESKey;
+import javacard.security.KeyBuilder;
+import javacard.security.Signature;
+import javacardx.crypto.Cipher;
+
+/**
+ * Secure messaging, as in ISO/IEC 7816-4:2020(E) 10, with AES-128 session keys.
+ * <p>
+ * A session starts whenever the applet is selected: the persistent session counter is incremented, and the
+ * encryption and MAC session keys are derived from the static key and the counter.  There is a single session, held
+ * by the logical channel that started it.  While it is open, selecting the applet on another channel leaves it as it
+ * is, and protected commands on any other channel are refused, so no channel can use or disturb another's session.
+ * It ends when the applet is deselected from its channel.  Commands are then protected by
+ * a cryptogram (87) of their data and a MAC (8E) of their header and data objects.  Successful responses carry a
+ * cryptogram of their data, the status (99) and a MAC.  Errors are returned as a bare status word.
+ * <p>
+ * MACs are AES-CMAC, truncated to 8 bytes, over the MAC chaining value followed by the message.  The chaining value
+ * is the full MAC of the last command, so commands cannot be replayed or reordered within a session.  A command with
+ * a wrong MAC ends the session.  Cryptograms are AES-CBC, padded as in ISO/IEC 9797-1 method 2, with an IV
+ * encrypting the number of the command in the session; response IVs have their first byte set to 0x80.
+ * <p>
+ * The cipher and MAC objects are created at install time, and the session keys and CMAC subkeys once per session,
+ * so each command costs a few block operations.  The MAC is computed as data objects are read, a block at a time.
+ */
+public class SecureMessaging {
+    /**
+     * Expected secure messaging data objects missing.  See ISO/IEC 7816-4:2020(E) 5.6
+     */
+    private static final short ISO7816_SW_SM_DATA_MISSING = (short)0x6987;
+
+    /**
+     * Incorrect secure messaging data objects.  See ISO/IEC 7816-4:2020(E) 5.6
+     */
+    private static final short ISO7816_SW_SM_DATA_INCORRECT = (short)0x6988;
+
+    /**
+     * Offset of the start of an array
+     */
+    private static final short OFFSET_ZERO = 0;
+
+    /**
+     * Indicates that a data object is absent
+     */
+    private static final short OFFSET_NONE = -1;
+
+    /**
+     * Length of an AES block, and of every key
+     */
+    public static final short BLOCK_SIZE = 16;
+
+    /**
+     * Length of a MAC, as sent
+     */
+    private static final short MAC_SIZE = 8;
+
+    /**
+     * Padding content indicator of a cryptogram padded as in ISO/IEC 9797-1 method 2
+     */
+    private static final byte PADDING_INDICATOR = 0x01;
+
+    /**
+     * First byte of ISO/IEC 9797-1 method 2 padding
+     */
+    private static final byte PADDING_START = (byte)0x80;
+
+    /**
+     * Padded cryptogram, as a data object
+     */
+    private static final byte[] TAG_CRYPTOGRAM = {(byte)0x87};
+
+    /**
+     * Expected length, as a data object.  Responses are always sent whole, so it is ignored.
+     */
+    private static final byte TAG_EXPECTED_LENGTH = (byte)0x97;
+
+    /**
+     * Processing status, as a data object
+     */
+    private static final byte TAG_STATUS = (byte)0x99;
+
+    /**
+     * Cryptographic checksum, as a data object
+     */
+    private static final byte TAG_MAC = (byte)0x8E;
+
+    /**
+     * Largest number of bytes a protected response adds to its data: the cryptogram header and padding indicator,
+     * a block of padding, the status and the MAC
+     */
+    public static final short RESPONSE_OVERHEAD = (short)(5 + BLOCK_SIZE + 4 + 2 + MAC_SIZE);
+
+    /**
+     * Session key derivation constant for the encryption key
+     */
+    private static final byte DERIVE_ENCRYPTION = 0x04;
+
+    /**
+     * Session key derivation constant for the MAC key
+     */
+    private static final byte DERIVE_MAC = 0x06;
+
+    /**
+     * Value of the session counter once it can no longer be incremented.  No session can then be started.
+     */
+    private static final short SESSION_COUNTER_EXHAUSTED = (short)0xFFFF;
+
+    /**
+     * CMAC subkey generation constant
+     */
+    private static final byte CMAC_RB = (byte)0x87;
+
+    /**
+     * Session: MAC chaining value
+     */
+    private static final short SESSION_CHAIN = 0;
+
+    /**
+     * Session: first CMAC subkey, for messages ending on a block boundary
+     */
+    private static final short SESSION_K1 = BLOCK_SIZE;
+
+    /**
+     * Session: second CMAC subkey, for padded messages
+     */
+    private static final short SESSION_K2 = (short)(BLOCK_SIZE * 2);
+
+    /**
+     * Session: last block of the message being MACed, held back until the MAC is finished
+     */
+    private static final short SESSION_BLOCK = (short)(BLOCK_SIZE * 3);
+
+    /**
+     * Session: block being encrypted, for IVs and key derivation
+     */
+    private static final short SESSION_SCRATCH = (short)(BLOCK_SIZE * 4);
+
+    private static final short SESSION_SIZE = (short)(BLOCK_SIZE * 5);
+
+    /**
+     * State: set while a session is open
+     */
+    private static final byte STATE_ACTIVE = 0;
+
+    /**
+     * State: number of commands in the session
+     */
+    private static final byte STATE_COMMANDS = 1;
+
+    /**
+     * State: number of bytes in the held back block
+     */
+    private static final byte STATE_BLOCK_LENGTH = 2;
+
+    /**
+     * State: set when the command being processed was protected
+     */
+    private static final byte STATE_PROTECTED = 3;
+
+    /**
+     * State: length of the unprotected command data
+     */
+    private static final byte STATE_COMMAND_LENGTH = 4;
+
+    /**
+     * State: set once the response to the command being processed has been protected
+     */
+    private static final byte STATE_RESPONDED = 5;
+
+    /**
+     * State: logical channel holding the session plus one, or zero while no channel does
+     */
+    private static final byte STATE_CHANNEL = 6;
+
+    private static final byte STATE_SIZE = 7;
+
+    /**
+     * Static key, given at install time
+     */
+    private final AESKey _staticKey;
+
+    /**
+     * Session encryption key
+     */
+    private final AESKey _encryptionKey;
+
+    /**
+     * Session MAC key
+     */
+    private final AESKey _macKey;
+
+    /**
+     * AES-CBC, for cryptograms, IVs and key derivation
+     */
+    private final Cipher _cipher;
+
+    /**
+     * AES-CBC MAC, finished as a CMAC with the session subkeys
+     */
+    private final Signature _mac;
+
+    /**
+     * Number of sessions started since install
+     */
+    private short _sessionCounter;
+
+    /**
+     * Session chaining value, subkeys and working blocks
+     */
+    private final byte[] _session;
+
+    /**
+     * Session and command state
+     */
+    private final short[] _state;
+
+    /**
+     * Creates the keys and cryptographic objects.  Called once, at install time.
+     */
+    public SecureMessaging() {
+        _staticKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+        _encryptionKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+        _macKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+        _cipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+        _mac = Signature.getInstance(Signature.ALG_AES_MAC_128_NOPAD, false);
+        _session = JCSystem.makeTransientByteArray(SESSION_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        _state = JCSystem.makeTransientShortArray(STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+    }
+
+    /**
+     * Set the static key.  Called at install time.
+     * @param buffer Buffer holding the key
+     * @param offset Offset of the key, which is BLOCK_SIZE bytes long
+     */
+    public void setStaticKey(byte[] buffer, short offset) {
+        _staticKey.setKey(buffer, offset);
+    }
+
+    /**
+     * Check whether a static key was given, in which case writes must be protected
+     * @return true if secure messaging is available
+     */
+    public boolean hasStaticKey() {
+        return _staticKey.isInitialized();
+    }
+
+    /**
+     * Get the session counter, from which the terminal derives the session keys
+     * @return Number of sessions started since install
+     */
+    public short getSessionCounter() {
+        return _sessionCounter;
+    }
+
+    /**
+     * Start a new session on a logical channel, deriving its keys, unless another channel holds the session.  Called
+     * when the applet is selected.
+     * @param channel Logical channel the applet is selected on
+     */
+    public void beginSession(byte channel) {
+        if (_state[STATE_CHANNEL] != 0 && _state[STATE_CHANNEL] != (short)(channel + 1)) {
+            return;
+        }
+        _state[STATE_ACTIVE] = 0;
+        _state[STATE_CHANNEL] = 0;
+        if (!hasStaticKey() || _sessionCounter == SESSION_COUNTER_EXHAUSTED) {
+            return;
+        }
+        _sessionCounter++;
+
+        deriveKey(_encryptionKey, DERIVE_ENCRYPTION);
+        deriveKey(_macKey, DERIVE_MAC);
+
+        // The CMAC subkeys are the encrypted zero block, doubled once and twice
+        Util.arrayFillNonAtomic(_session, OFFSET_ZERO, SESSION_SIZE, (byte)0);
+        encryptBlock(_macKey, _session, SESSION_SCRATCH, _session, SESSION_K1);
+        doubleBlock(_session, SESSION_K1, SESSION_K1);
+        doubleBlock(_session, SESSION_K1, SESSION_K2);
+        _state[STATE_COMMANDS] = 0;
+        _state[STATE_CHANNEL] = (short)(channel + 1);
+        _state[STATE_ACTIVE] = 1;
+    }
+
+    /**
+     * Check whether a logical channel holds the session
+     * @param channel Logical channel
+     * @return true if the session is open on the channel
+     */
+    public boolean isSessionChannel(byte channel) {
+        return _state[STATE_CHANNEL] == (short)(channel + 1);
+    }
+
+    /**
+     * End the session, so that no further command is accepted until the applet is selected again
+     */
+    public void endSession() {
+        _state[STATE_ACTIVE] = 0;
+        _state[STATE_CHANNEL] = 0;
+        _encryptionKey.clearKey();
+        _macKey.clearKey();
+        Util.arrayFillNonAtomic(_session, OFFSET_ZERO, SESSION_SIZE, (byte)0);
+    }
+
+    /**
+     * Forget the protection of the previous command.  Called before every command.
+     */
+    public void beginCommand() {
+        _state[STATE_PROTECTED] = 0;
+        _state[STATE_RESPONDED] = 0;
+        _state[STATE_COMMAND_LENGTH] = 0;
+    }
+
+    /**
+     * Check whether the command being processed was protected, and so must have a protected response
+     * @return true if the command was protected
+     */
+    public boolean isCommandProtected() {
+        return _state[STATE_PROTECTED] != 0;
+    }
+
+    /**
+     * Check whether the response to the command being processed has been protected
+     * @return true if a protected response was produced
+     */
+    public boolean isResponseProtected() {
+        return _state[STATE_RESPONDED] != 0;
+    }
+
+    /**
+     * Get the length of the unprotected command data, which unwrapCommand left at the start of the command data
+     * @return Length of the command data
+     */
+    public short getCommandLength() {
+        return _state[STATE_COMMAND_LENGTH];
+    }
+
+    /**
+     * Check and decipher a protected command, leaving its unprotected data in place of the protected data
+     * @param channel Logical channel of the command, which must hold the session
+     * @param buffer APDU buffer, holding the command header and the whole of the command data
+     * @param dataOffset Offset of the command data
+     * @param dataLength Length of the command data
+     * @param cursor Cursor for decoding the data objects
+     */
+    public void unwrapCommand(byte channel, byte[] buffer, short dataOffset, short dataLength, short[] cursor) {
+        if (_state[STATE_ACTIVE] == 0 || !isSessionChannel(channel)) {
+            ISOException.throwIt(ISO7816.SW_SECURE_MESSAGING_NOT_SUPPORTED);
+        }
+
+        // The data objects are the cryptogram and expected length, both optional, then the MAC
+        short dataEnd = (short)(dataOffset + dataLength);
+        short cryptogramOffset = OFFSET_NONE;
+        short cryptogramLength = 0;
+        short macOffset = OFFSET_NONE;
+        short offset = dataOffset;
+        while (offset < dataEnd) {
+            short next = DerParser.ReadTlv(buffer, offset, dataEnd, cursor);
+            short tag = cursor[DerParser.CURSOR_TAG];
+            short valueOffset = cursor[DerParser.CURSOR_VALUE_OFFSET];
+            short valueLength = cursor[DerParser.CURSOR_VALUE_LENGTH];
+            if (tag == (short)(TAG_CRYPTOGRAM[0] & 0xFF) && cryptogramOffset == OFFSET_NONE) {
+                cryptogramOffset = valueOffset;
+                cryptogramLength = valueLength;
+            } else if (tag == (short)(TAG_MAC & 0xFF) && valueLength == MAC_SIZE) {
+                macOffset = valueOffset;
+                break;
+            } else if (tag != (short)(TAG_EXPECTED_LENGTH & 0xFF)) {
+                ISOException.throwIt(ISO7816_SW_SM_DATA_INCORRECT);
+            }
+            offset = next;
+        }
+        if (macOffset == OFFSET_NONE) {
+            ISOException.throwIt(ISO7816_SW_SM_DATA_MISSING);
+        } else if ((short)(macOffset + MAC_SIZE) != dataEnd) {
+            ISOException.throwIt(ISO7816_SW_SM_DATA_INCORRECT);
+        }
+
+        // The MAC covers the header, then every data object before it
+        short commands = (short)(_state[STATE_COMMANDS] + 1);
+        beginMac();
+        updateMac(buffer, ISO7816.OFFSET_CLA, (short)4);
+        updateMac(buffer, dataOffset, (short)(offset - dataOffset));
+        short mac = finishMac();
+        if (Util.arrayCompare(_session, mac, buffer, macOffset, MAC_SIZE) != 0) {
+            endSession();
+            ISOException.throwIt(ISO7816_SW_SM_DATA_INCORRECT);
+        }
+        Util.arrayCopyNonAtomic(_session, mac, _session, SESSION_CHAIN, BLOCK_SIZE);
+        _state[STATE_COMMANDS] = commands;
+        _state[STATE_PROTECTED] = 1;
+
+        // The cryptogram is deciphered to the start of the command data, and its padding removed
+        short length = 0;
+        if (cryptogramOffset != OFFSET_NONE) {
+            cryptogramLength--;
+            if (cryptogramLength <= 0 || (short)(cryptogramLength % BLOCK_SIZE) != 0
+                    || buffer[cryptogramOffset] != PADDING_INDICATOR) {
+                ISOException.throwIt(ISO7816_SW_SM_DATA_INCORRECT);
+            }
+            initCipher(Cipher.MODE_DECRYPT, (byte)0);
+            _cipher.doFinal(buffer, (short)(cryptogramOffset + 1), cryptogramLength, buffer, dataOffset);
+            length = removePadding(buffer, dataOffset, cryptogramLength);
+        }
+        _state[STATE_COMMAND_LENGTH] = length;
+    }
+
+    /**
+     * Protect a successful response, in place
+     * @param buffer Buffer holding the response data, which must have RESPONSE_OVERHEAD bytes to spare
+     * @param length Length of the response data
+     * @return Length of the protected response
+     */
+    public short wrapResponse(byte[] buffer, short length) {
+        // The data is moved past the cryptogram header, padded and enciphered
+        short offset = OFFSET_ZERO;
+        if (length != 0) {
+            short padded = (short)((short)(length / BLOCK_SIZE + 1) * BLOCK_SIZE);
+            short valueOffset = (short)(1 + DerParser.GetLengthSize((short)(padded + 1)));
+            Util.arrayCopyNonAtomic(buffer, OFFSET_ZERO, buffer, (short)(valueOffset + 1), length);
+            DerParser.WriteHeader(buffer, OFFSET_ZERO, TAG_CRYPTOGRAM, OFFSET_ZERO, (short)1, (short)(padded + 1));
+            buffer[valueOffset++] = PADDING_INDICATOR;
+            buffer[(short)(valueOffset + length)] = PADDING_START;
+            Util.arrayFillNonAtomic(buffer, (short)(valueOffset + length + 1), (short)(padded - length - 1), (byte)0);
+            initCipher(Cipher.MODE_ENCRYPT, PADDING_START);
+            offset = (short)(valueOffset + _cipher.doFinal(buffer, valueOffset, padded, buffer, valueOffset));
+        }
+        buffer[offset++] = TAG_STATUS;
+        buffer[offset++] = 2;
+        offset = Util.setShort(buffer, offset, ISO7816.SW_NO_ERROR);
+
+        // The MAC covers every data object before it, chained from the command's MAC
+        beginMac();
+        updateMac(buffer, OFFSET_ZERO, offset);
+        short mac = finishMac();
+        buffer[offset++] = TAG_MAC;
+        buffer[offset++] = MAC_SIZE;
+        offset = Util.arrayCopyNonAtomic(_session, mac, buffer, offset, MAC_SIZE);
+        _state[STATE_RESPONDED] = 1;
+        return offset;
+    }
+
+    /**
+     * Encrypt one block with the static key, to give a session key
+     * @param key Session key to set
+     * @param constant Derivation constant of the key
+     */
+    private void deriveKey(AESKey key, byte constant) {
+        Util.arrayFillNonAtomic(_session, SESSION_SCRATCH, BLOCK_SIZE, (byte)0);
+        _session[SESSION_SCRATCH] = constant;
+        Util.setShort(_session, (short)(SESSION_SCRATCH + BLOCK_SIZE - 2), _sessionCounter);
+        encryptBlock(_staticKey, _session, SESSION_SCRATCH, _session, SESSION_SCRATCH);
+        key.setKey(_session, SESSION_SCRATCH);
+        Util.arrayFillNonAtomic(_session, SESSION_SCRATCH, BLOCK_SIZE, (byte)0);
+    }
+
+    /**
+     * Encrypt a single block
+     * @param key Key to encrypt with
+     * @param source Buffer holding the block
+     * @param sourceOffset Offset of the block
+     * @param dest Destination buffer
+     * @param destOffset Destination offset
+     */
+    private void encryptBlock(AESKey key, byte[] source, short sourceOffset, byte[] dest, short destOffset) {
+        _cipher.init(key, Cipher.MODE_ENCRYPT);
+        _cipher.doFinal(source, sourceOffset, BLOCK_SIZE, dest, destOffset);
+    }
+
+    /**
+     * Initialize the cipher for the cryptogram of the current command or response.  The IV is the encrypted number
+     * of the command in the session.
+     * @param mode Cipher.MODE_ENCRYPT or Cipher.MODE_DECRYPT
+     * @param direction First byte of the IV block: zero for commands, PADDING_START for responses
+     */
+    private void initCipher(byte mode, byte direction) {
+        Util.arrayFillNonAtomic(_session, SESSION_SCRATCH, BLOCK_SIZE, (byte)0);
+        _session[SESSION_SCRATCH] = direction;
+        Util.setShort(_session, (short)(SESSION_SCRATCH + BLOCK_SIZE - 2), _state[STATE_COMMANDS]);
+        encryptBlock(_encryptionKey, _session, SESSION_SCRATCH, _session, SESSION_SCRATCH);
+        _cipher.init(_encryptionKey, mode, _session, SESSION_SCRATCH, BLOCK_SIZE);
+    }
+
+    /**
+     * Remove ISO/IEC 9797-1 method 2 padding
+     * @param buffer Buffer holding the padded data
+     * @param offset Offset of the padded data
+     * @param length Length of the padded data
+     * @return Length of the data without its padding
+     */
+    private static short removePadding(byte[] buffer, short offset, short length) {
+        short end = (short)(offset + length - 1);
+        short limit = (short)(end - BLOCK_SIZE);
+        while (end > limit && buffer[end] == 0) {
+            end--;
+        }
+        if (end == limit || buffer[end] != PADDING_START) {
+            ISOException.throwIt(ISO7816_SW_SM_DATA_INCORRECT);
+        }
+        return (short)(end - offset);
+    }
+
+    /**
+     * Start a MAC, chained from the last command's MAC
+     */
+    private void beginMac() {
+        _mac.init(_macKey, Signature.MODE_SIGN);
+        _mac.update(_session, SESSION_CHAIN, BLOCK_SIZE);
+        _state[STATE_BLOCK_LENGTH] = 0;
+    }
+
+    /**
+     * Add part of the message to the MAC.  The last block is held back, to be finished with a subkey.
+     * @param buffer Buffer holding the part
+     * @param offset Offset of the part
+     * @param length Length of the part
+     */
+    private void updateMac(byte[] buffer, short offset, short length) {
+        short held = _state[STATE_BLOCK_LENGTH];
+        while (length > 0) {
+            if (held == BLOCK_SIZE) {
+                _mac.update(_session, SESSION_BLOCK, BLOCK_SIZE);
+                held = 0;
+            }
+
+            // Whole blocks go straight to the MAC, as long as one is left to hold back
+            if (held == 0 && length > BLOCK_SIZE) {
+                short blocks = (short)((short)((short)(length - 1) / BLOCK_SIZE) * BLOCK_SIZE);
+                _mac.update(buffer, offset, blocks);
+                offset += blocks;
+                length -= blocks;
+            }
+
+            short count = (short)(BLOCK_SIZE - held);
+            if (count > length) {
+                count = length;
+            }
+            Util.arrayCopyNonAtomic(buffer, offset, _session, (short)(SESSION_BLOCK + held), count);
+            held += count;
+            offset += count;
+            length -= count;
+        }
+        _state[STATE_BLOCK_LENGTH] = held;
+    }
+
+    /**
+     * Finish the MAC, padding the held back block if it is partial and combining it with the matching subkey
+     * @return Offset within the session array of the full MAC, which is BLOCK_SIZE bytes long
+     */
+    private short finishMac() {
+        short held = _state[STATE_BLOCK_LENGTH];
+        short subkey = SESSION_K1;
+        if (held < BLOCK_SIZE) {
+            _session[(short)(SESSION_BLOCK + held)] = PADDING_START;
+            Util.arrayFillNonAtomic(_session, (short)(SESSION_BLOCK + held + 1), (short)(BLOCK_SIZE - held - 1), (byte)0);
+            subkey = SESSION_K2;
+        }
+        for (short i = 0; i < BLOCK_SIZE; i++) {
+            _session[(short)(SESSION_BLOCK + i)] ^= _session[(short)(subkey + i)];
+        }
+        _mac.sign(_session, SESSION_BLOCK, BLOCK_SIZE, _session, SESSION_SCRATCH);
+        return SESSION_SCRATCH;
+    }
+
+    /**
+     * Multiply a block by x in GF(2^128), as for CMAC subkeys
+     * @param buffer Buffer holding the block, and receiving the result
+     * @param source Offset of the block
+     * @param dest Offset of the result
+     */
+    private static void doubleBlock(byte[] buffer, short source, short dest) {
+        boolean carry = buffer[source] < 0;
+        for (short i = 0; i < (short)(BLOCK_SIZE - 1); i++) {
+            buffer[(short)(dest + i)] = (byte)((buffer[(short)(source + i)] << 1)
+                    | ((buffer[(short)(source + i + 1)] >> 7) & 1));
+        }
+        buffer[(short)(dest + BLOCK_SIZE - 1)] = (byte)(buffer[(short)(source + BLOCK_SIZE - 1)] << 1);
+        if (carry) {
+            buffer[(short)(dest + BLOCK_SIZE - 1)] ^= CMAC_RB;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package applet;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Remembers the files found by recent SELECT commands, so that selecting the same file again does not walk the tree.
+ * Entries are keyed by P1 and the command data, and only absolute references (by DF name, or by path from the
+ * master file) are cached, as their result does not depend on the current file.
+ * The cache lives in RAM and is cleared whenever the tree changes.
+ */
+public class SelectionCache {
+    /**
+     * Number of cached selections
+     */
+    private static final short ENTRY_COUNT = 4;
+
+    /**
+     * Longest command data that is cached: a full DF name, or a path eight files deep
+     */
+    public static final short MAX_DATA_SIZE = 16;
+
+    /**
+     * Entry: [Key Length (1)] [P1 (1)] [Command Data (MAX_DATA_SIZE)]
+     */
+    private static final short ENTRY_SIZE = (short)(2 + MAX_DATA_SIZE);
+
+    /**
+     * Cache keys, ENTRY_SIZE bytes each.  A key length of zero marks an empty entry.
+     */
+    private final byte[] _keys;
+
+    /**
+     * File found for each key
+     */
+    private final Object[] _files;
+
+    /**
+     * Entry to be replaced next
+     */
+    private final byte[] _next;
+
+    /**
+     * Allocates the cache.  Called once, at install time.
+     */
+    public SelectionCache() {
+        _keys = JCSystem.makeTransientByteArray((short)(ENTRY_COUNT * ENTRY_SIZE), JCSystem.CLEAR_ON_RESET);
+        _files = JCSystem.makeTransientObjectArray(ENTRY_COUNT, JCSystem.CLEAR_ON_RESET);
+        _next = JCSystem.makeTransientByteArray((short)1, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Discard every cached selection
+     */
+    public void clear() {
+        Util.arrayFillNonAtomic(_keys, (short)0, (short)_keys.length, (byte)0x00);
+        for (short i = 0; i < ENTRY_COUNT; i++) {
+            _files[i] = null;
+        }
+        _next[0] = 0;
+    }
+
+    /**
+     * Look up a selection
+     * @param p1 Selection control
+     * @param buffer Buffer holding the command data
+     * @param offset Offset of the command data
+     * @param length Length of the command data
+     * @return File previously found, or null if the selection is not cached
+     */
+    public ElementaryFile find(byte p1, byte[] buffer, short offset, short length) {
+        if (length > MAX_DATA_SIZE) {
+            return null;
+        }
+        for (short i = 0; i < ENTRY_COUNT; i++) {
+            short entry = (short)(i * ENTRY_SIZE);
+            if (_keys[entry] == (byte)(length + 1) && _keys[(short)(entry + 1)] == p1
+                    && Util.arrayCompare(buffer, offset, _keys, (short)(entry + 2), length) == 0) {
+                return (ElementaryFile)_files[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remember a selection, replacing the oldest entry
+     * @param p1 Selection control
+     * @param buffer Buffer holding the command data
+     * @param offset Offset of the command data
+     * @param length Length of the command data
+     * @param file File found
+     */
+    public void put(byte p1, byte[] buffer, short offset, short length, ElementaryFile file) {
+        if (length > MAX_DATA_SIZE) {
+            return;
+        }
+        short index = _next[0];
+        short entry = (short)(index * ENTRY_SIZE);
+        _keys[entry] = (byte)(length + 1);
+        _keys[(short)(entry + 1)] = p1;
+        Util.arrayCopyNonAtomic(buffer, offset, _keys, (short)(entry + 2), length);
+        _files[index] = file;
+        _next[0] = (byte)((short)(index + 1) % ENTRY_COUNT);
+    }
+}
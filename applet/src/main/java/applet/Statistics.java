@@ -0,0 +1,199 @@
+package applet;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Usage counters, kept so the applet's workload can be measured in the field.
+ * <p>
+ * Totals are 32-bit, and stored in a persistent array.  Writing them on every command would cost an EEPROM write
+ * each time, so counts build up in RAM and are added to the totals every few commands, when the applet is deselected,
+ * and when the totals are read.  Counts still in RAM when the card loses power are lost.
+ */
+public class Statistics {
+    /**
+     * Counter: SELECT commands, including those that select the applet
+     */
+    public static final byte COUNTER_SELECT = 0;
+
+    /**
+     * Counter: CREATE FILE commands
+     */
+    public static final byte COUNTER_CREATE_FILE = 1;
+
+    /**
+     * Counter: GET RESPONSE commands
+     */
+    public static final byte COUNTER_GET_RESPONSE = 2;
+
+    /**
+     * Counter: GET DATA commands
+     */
+    public static final byte COUNTER_GET_DATA = 3;
+
+    /**
+     * Counter: PUT DATA commands
+     */
+    public static final byte COUNTER_PUT_DATA = 4;
+
+    /**
+     * Counter: READ BINARY commands
+     */
+    public static final byte COUNTER_READ_BINARY = 5;
+
+    /**
+     * Counter: UPDATE BINARY commands
+     */
+    public static final byte COUNTER_UPDATE_BINARY = 6;
+
+    /**
+     * Counter: GET CHALLENGE commands
+     */
+    public static final byte COUNTER_GET_CHALLENGE = 7;
+
+    /**
+     * Counter: EXTERNAL AUTHENTICATE commands
+     */
+    public static final byte COUNTER_EXTERNAL_AUTHENTICATE = 8;
+
+    /**
+     * Counter: commands with an instruction the applet does not support
+     */
+    public static final byte COUNTER_OTHER = 9;
+
+    /**
+     * Counter: commands that ended with an error status word
+     */
+    public static final byte COUNTER_ERRORS = 10;
+
+    /**
+     * Counter: command data bytes received
+     */
+    public static final byte COUNTER_BYTES_RECEIVED = 11;
+
+    /**
+     * Counter: response data bytes sent
+     */
+    public static final byte COUNTER_BYTES_SENT = 12;
+
+    /**
+     * Counter: data objects published by PUT DATA
+     */
+    public static final byte COUNTER_OBJECTS_WRITTEN = 13;
+
+    /**
+     * Counter: compaction passes run after PUT DATA, on request or once enough space is orphaned
+     */
+    public static final byte COUNTER_COMPACTIONS = 14;
+
+    private static final byte COUNTER_COUNT = 15;
+
+    /**
+     * Length of the serialized totals: each counter as a four byte unsigned integer
+     */
+    public static final short STATUS_SIZE = (short)(COUNTER_COUNT * 4);
+
+    /**
+     * Number of commands counted in RAM before they are added to the totals
+     */
+    private static final short FLUSH_INTERVAL = 16;
+
+    /**
+     * Pending entry: number of commands counted since the last flush
+     */
+    private static final byte PENDING_COMMANDS = COUNTER_COUNT;
+
+    private static final byte PENDING_SIZE = COUNTER_COUNT + 1;
+
+    /**
+     * Totals since install, as a high and a low short per counter
+     */
+    private final short[] _totals;
+
+    /**
+     * Counts not yet added to the totals
+     */
+    private final short[] _pending;
+
+    /**
+     * Allocates the counters.  Called once, at install time.
+     */
+    public Statistics() {
+        _totals = new short[(short)(COUNTER_COUNT * 2)];
+        _pending = JCSystem.makeTransientShortArray(PENDING_SIZE, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Count a command, adding the pending counts to the totals if enough commands have built up
+     * @param counter Counter of the command's instruction
+     */
+    public void countCommand(byte counter) {
+        if (_pending[PENDING_COMMANDS] >= FLUSH_INTERVAL) {
+            flush();
+        }
+        _pending[PENDING_COMMANDS]++;
+        add(counter, (short)1);
+    }
+
+    /**
+     * Add to a counter
+     * @param counter Counter to add to
+     * @param amount Amount to add, which must not be negative
+     */
+    public void add(byte counter, short amount) {
+        // A count that would overflow RAM goes to the totals first
+        if ((short)(_pending[counter] + amount) < 0) {
+            flush();
+        }
+        _pending[counter] += amount;
+    }
+
+    /**
+     * Add the pending counts to the totals, in a single transaction unless one is already open
+     */
+    public void flush() {
+        if (_pending[PENDING_COMMANDS] == 0) {
+            return;
+        }
+
+        boolean ownTransaction = JCSystem.getTransactionDepth() == 0;
+        if (ownTransaction) {
+            JCSystem.beginTransaction();
+        }
+        for (short counter = 0; counter < COUNTER_COUNT; counter++) {
+            short amount = _pending[counter];
+            if (amount == 0) {
+                continue;
+            }
+
+            // The low short carries into the high short when it wraps past 0xFFFF
+            short high = (short)(counter * 2);
+            short low = (short)(high + 1);
+            short sum = (short)(_totals[low] + amount);
+            if ((short)(sum ^ (short)0x8000) < (short)(_totals[low] ^ (short)0x8000)) {
+                _totals[high]++;
+            }
+            _totals[low] = sum;
+        }
+        if (ownTransaction) {
+            JCSystem.commitTransaction();
+        }
+        for (short i = 0; i < PENDING_SIZE; i++) {
+            _pending[i] = 0;
+        }
+    }
+
+    /**
+     * Write the totals, including any pending counts, as a sequence of four byte unsigned integers in counter order
+     * @param buffer Destination buffer
+     * @param offset Destination offset
+     * @return Number of bytes written, which is STATUS_SIZE
+     */
+    public short writeStatus(byte[] buffer, short offset) {
+        flush();
+        for (short i = 0; i < (short)(COUNTER_COUNT * 2); i++) {
+            Util.setShort(buffer, (short)(offset + i * 2), _totals[i]);
+        }
+        return STATUS_SIZE;
+    }
+}
@@ -0,0 +1,164 @@
+package applet;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+
+/**
+ * The applet's working RAM: one transient buffer, allocated at install time, that command handlers borrow ranges of.
+ * <p>
+ * [Reserved (install time)] [Allocated (current command)] [Free]
+ * <p>
+ * Reserved ranges belong to an object for the life of the applet.  Allocated ranges belong to the command being
+ * processed, and are released before the next one, unless they are held for a response still pending on a logical
+ * channel.  Held ranges stay in place until that channel's response is finished, and commands on other channels
+ * allocate above them.  The largest amount ever in use is recorded, so the size given at install time can be checked
+ * against what the applet actually needs.
+ */
+public class Workspace {
+    /**
+     * State: offset of the first free byte
+     */
+    private static final byte STATE_TOP = 0;
+
+    private static final byte STATE_SIZE = 1;
+
+    /**
+     * Working buffer shared by all handlers
+     */
+    private final byte[] _buffer;
+
+    /**
+     * Allocation state, kept in RAM as it changes with every command
+     */
+    private final short[] _state;
+
+    /**
+     * End of the ranges held for the pending response of each logical channel, or zero if none are held
+     */
+    private final short[] _held;
+
+    /**
+     * Offset just past the ranges reserved at install time
+     */
+    private short _base;
+
+    /**
+     * Largest number of bytes in use at once since install
+     */
+    private short _highWater;
+
+    /**
+     * Allocates the working buffer.  Called once, at install time.
+     * @param size Size of the working buffer, in bytes
+     * @param channels Number of logical channels that may hold ranges for a pending response
+     */
+    public Workspace(short size, byte channels) {
+        _buffer = JCSystem.makeTransientByteArray(size, JCSystem.CLEAR_ON_DESELECT);
+        _state = JCSystem.makeTransientShortArray(STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        _held = JCSystem.makeTransientShortArray(channels, JCSystem.CLEAR_ON_DESELECT);
+    }
+
+    /**
+     * Get the working buffer.  Ranges of it are only valid as returned by reserve or allocate.
+     * @return Working buffer
+     */
+    public byte[] getBuffer() {
+        return _buffer;
+    }
+
+    /**
+     * Get the size of the working buffer
+     * @return Size, in bytes
+     */
+    public short getSize() {
+        return (short)_buffer.length;
+    }
+
+    /**
+     * Get the largest number of bytes in use at once since install, including reserved ranges
+     * @return High-water mark, in bytes
+     */
+    public short getHighWater() {
+        return _highWater;
+    }
+
+    /**
+     * Reserve a range for the life of the applet.  Only called at install time, before any allocation.
+     * @param length Length of the range
+     * @return Offset of the range
+     */
+    public short reserve(short length) {
+        short offset = _base;
+        _base = claim(offset, length);
+        return offset;
+    }
+
+    /**
+     * Allocate a range for the command being processed
+     * @param length Length of the range
+     * @return Offset of the range
+     */
+    public short allocate(short length) {
+        short offset = getTop();
+        _state[STATE_TOP] = claim(offset, length);
+        return offset;
+    }
+
+    /**
+     * Release every range allocated by earlier commands, except those held for pending responses
+     */
+    public void release() {
+        short top = _base;
+        for (short channel = 0; channel < (short)_held.length; channel++) {
+            if (_held[channel] > top) {
+                top = _held[channel];
+            }
+        }
+        _state[STATE_TOP] = top;
+    }
+
+    /**
+     * Hold every range allocated so far until the pending response of a logical channel is finished
+     * @param channel Logical channel with a pending response
+     */
+    public void hold(byte channel) {
+        if (_held[channel] == 0) {
+            _held[channel] = getTop();
+        }
+    }
+
+    /**
+     * Stop holding ranges for a logical channel, whose response is finished or discarded
+     * @param channel Logical channel
+     */
+    public void drop(byte channel) {
+        _held[channel] = 0;
+    }
+
+    /**
+     * Get the offset of the first free byte.  A cleared state means nothing has been allocated since selection.
+     * @return Offset of the first free byte
+     */
+    private short getTop() {
+        short top = _state[STATE_TOP];
+        return (top < _base) ? _base : top;
+    }
+
+    /**
+     * Check that a range fits the buffer, and record it in the high-water mark
+     * @param offset Offset of the range
+     * @param length Length of the range
+     * @return Offset just past the range
+     */
+    private short claim(short offset, short length) {
+        short end = (short)(offset + length);
+        if (length < 0 || end < offset || end > (short)_buffer.length) {
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+        if (end > _highWater) {
+            _highWater = end;
+        }
+        return end;
+    }
+}
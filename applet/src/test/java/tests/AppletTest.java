@@ -1,10 +1,25 @@
 package tests;
 
+import applet.DataObject;
+import applet.DataObjectReceiver;
+import applet.DerParser;
+import applet.ElementaryFile;
+import applet.ExternalAuthentication;
+import applet.SecureMessaging;
+import applet.Statistics;
+import applet.Workspace;
 import cardTools.CardManager;
 import cardTools.CardType;
 import org.junit.jupiter.api.*;
 
+import java.nio.ByteBuffer;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
+import javacard.framework.ISOException;
+import javacard.security.RandomData;
 
 /**
  * Example test class for the applet
@@ -13,6 +28,11 @@ import javax.smartcardio.ResponseAPDU;
  * @author xsvenda, Dusan Klinec (ph4r05)
  */
 public class AppletTest extends BaseTest {
+    /**
+     * [Len] [AID] [Len] [Info] [Len] [Data]
+     */
+    private static final byte[] INSTALL_PARAMS = new byte[] {(byte)0x0B, (byte)0x0F,(byte)0x49,(byte)0x53,(byte)0x4F,(byte)0x53,(byte)0x43,(byte)0x45,(byte)0x4C,(byte)0x45,(byte)0x53,(byte)0x01, (byte)0x00, (byte)0x00};
+
     /**
      * Initialize the test
      */
@@ -66,4 +86,1057 @@ public class AppletTest extends BaseTest {
         Assertions.assertNotNull(atsResponse.getBytes());
         Assertions.assertArrayEquals(validAnswerToSelect, atsResponse.getBytes());
     }
+
+    /**
+     * Ensure that a data object written with PUT DATA can be read back with GET DATA.
+     */
+    @Test
+    public void testGetData() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // PUT DATA into the current DF: DE [03] 01 02 03
+        byte[] putData = new byte[] {(byte)0xDE, (byte)0x03, (byte)0x01, (byte)0x02, (byte)0x03};
+        ResponseAPDU putResponse = manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, putData));
+        Assertions.assertEquals(0x9000, putResponse.getSW());
+
+        // GET DATA from the master file
+        ResponseAPDU getResponse = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xDE}, 0x100));
+        Assertions.assertEquals(0x9000, getResponse.getSW());
+        Assertions.assertArrayEquals(new byte[] {(byte)0x01, (byte)0x02, (byte)0x03}, getResponse.getData());
+
+        // Unknown tags are reported as referenced data not found
+        ResponseAPDU missingResponse = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertEquals(0x6A88, missingResponse.getSW());
+    }
+
+    /**
+     * Ensure that every data object in a full file can be found, and that the file reports when it is full.
+     */
+    @Test
+    public void testDataObjectLookup() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // Fill the master file with one and two byte tags, several of which collide in the tag index
+        byte[][] tags = new byte[][] {
+                {(byte)0xC1}, {(byte)0xD1}, {(byte)0x81}, {(byte)0x5F, (byte)0x20},
+                {(byte)0x5F, (byte)0x30}, {(byte)0xDF, (byte)0x01}, {(byte)0xC2}, {(byte)0xDE}
+        };
+        for (int i = 0; i < tags.length; i++) {
+            byte[] tlv = new byte[tags[i].length + 2];
+            System.arraycopy(tags[i], 0, tlv, 0, tags[i].length);
+            tlv[tags[i].length] = (byte)0x01;
+            tlv[tags[i].length + 1] = (byte)i;
+            Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, tlv)).getSW());
+        }
+
+        for (int i = 0; i < tags.length; i++) {
+            ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, tags[i], 0x100));
+            Assertions.assertEquals(0x9000, response.getSW());
+            Assertions.assertArrayEquals(new byte[] {(byte)i}, response.getData());
+        }
+
+        // Updating an existing tag still succeeds, adding a new one does not
+        byte[] update = new byte[] {(byte)0xD1, (byte)0x01, (byte)0x7F};
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, update)).getSW());
+        byte[] overflow = new byte[] {(byte)0xC3, (byte)0x01, (byte)0x00};
+        Assertions.assertEquals(0x6A84, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, overflow)).getSW());
+    }
+
+    /**
+     * Ensure that values survive being updated in place, relocated, and compacted within the file's arena.
+     */
+    @Test
+    public void testArenaStorage() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        byte[] fixed = new byte[] {(byte)0xC2, (byte)0x04, (byte)0x0A, (byte)0x0B, (byte)0x0C, (byte)0x0D};
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, fixed)).getSW());
+
+        // Growing values are relocated each time, and the orphaned records must eventually be compacted away
+        byte[] value = null;
+        for (int length = 40; length <= 127; length += 3) {
+            value = new byte[length];
+            for (int i = 0; i < length; i++) {
+                value[i] = (byte)(length + i);
+            }
+            byte[] tlv = new byte[length + 2];
+            tlv[0] = (byte)0xC1;
+            tlv[1] = (byte)length;
+            System.arraycopy(value, 0, tlv, 2, length);
+            Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, tlv)).getSW());
+        }
+
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(value, response.getData());
+
+        // Shrinking a value updates it in place
+        byte[] shrink = new byte[] {(byte)0xC1, (byte)0x02, (byte)0x55, (byte)0xAA};
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, shrink)).getSW());
+
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(new byte[] {(byte)0x55, (byte)0xAA}, response.getData());
+
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC2}, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(new byte[] {(byte)0x0A, (byte)0x0B, (byte)0x0C, (byte)0x0D}, response.getData());
+    }
+
+    /**
+     * Ensure that a single extended PUT DATA can carry several data objects, and that truncated objects are rejected.
+     */
+    @Test
+    public void testPutDataBatch() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // Eight objects of 127 bytes each, which is more than a short APDU can carry
+        byte[] batch = new byte[8 * 129];
+        for (int i = 0; i < 8; i++) {
+            batch[i * 129] = (byte)(0xC1 + i);
+            batch[i * 129 + 1] = (byte)0x7F;
+            for (int j = 0; j < 127; j++) {
+                batch[i * 129 + 2 + j] = (byte)(i ^ j);
+            }
+        }
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, batch)).getSW());
+
+        for (int i = 0; i < 8; i++) {
+            byte[] expected = new byte[127];
+            System.arraycopy(batch, i * 129 + 2, expected, 0, 127);
+            ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)(0xC1 + i)}, 0x100));
+            Assertions.assertEquals(0x9000, response.getSW());
+            Assertions.assertArrayEquals(expected, response.getData());
+        }
+
+        // A value shorter than its length is rejected
+        byte[] truncated = new byte[] {(byte)0xC1, (byte)0x7F, (byte)0x00, (byte)0x00};
+        Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, truncated)).getSW());
+
+        // A batch may hold as many data objects as the file, but one larger than its journal is refused as too long
+        byte[] configuration = {(byte)0x80, 0x01, 0x18};
+        byte[] installParams = concat(java.util.Arrays.copyOf(INSTALL_PARAMS, INSTALL_PARAMS.length - 1), concat(new byte[] {(byte)configuration.length}, configuration));
+        manager = connectRaw(installParams);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        batch = new byte[24 * 3];
+        for (int i = 0; i < 24; i++) {
+            batch[i * 3] = (byte)(0xC1 + i);
+            batch[i * 3 + 1] = 0x01;
+            batch[i * 3 + 2] = (byte)i;
+        }
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, batch)).getSW());
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xD8}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x17}, response.getData());
+        batch = new byte[49 * 3];
+        for (int i = 0; i < 49; i++) {
+            batch[i * 3] = (byte)0xC1;
+            batch[i * 3 + 1] = 0x01;
+            batch[i * 3 + 2] = (byte)i;
+        }
+        Assertions.assertEquals(0x6700, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, batch)).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x00}, response.getData());
+    }
+
+    /**
+     * Ensure that a data object can be written with a chain of short commands, and read back with GET RESPONSE.
+     */
+    @Test
+    public void testCommandChaining() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // C1 [7F] followed by 127 bytes, split into three chained commands in the middle of the header and value
+        byte[] tlv = new byte[129];
+        tlv[0] = (byte)0xC1;
+        tlv[1] = (byte)0x7F;
+        for (int i = 2; i < tlv.length; i++) {
+            tlv[i] = (byte)i;
+        }
+        byte[] expected = java.util.Arrays.copyOfRange(tlv, 2, tlv.length);
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x10, 0xDB, 0x3F, 0x00, tlv, 0, 1)).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x10, 0xDB, 0x3F, 0x00, tlv, 1, 60)).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, tlv, 61, 68)).getSW());
+
+        // Read it back 50 bytes at a time.  GET RESPONSE goes straight to the channel, as CardManager rewrites Le.
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 50));
+        Assertions.assertEquals(0x614D, response.getSW());
+        byte[] received = response.getData();
+        response = manager.getChannel().transmit(new CommandAPDU(0x00, 0xC0, 0x00, 0x00, 50));
+        Assertions.assertEquals(0x611B, response.getSW());
+        received = concat(received, response.getData());
+        response = manager.getChannel().transmit(new CommandAPDU(0x00, 0xC0, 0x00, 0x00, 50));
+        Assertions.assertEquals(0x9000, response.getSW());
+        received = concat(received, response.getData());
+        Assertions.assertArrayEquals(expected, received);
+
+        // Nothing is left to retrieve
+        Assertions.assertEquals(0x6985, manager.getChannel().transmit(new CommandAPDU(0x00, 0xC0, 0x00, 0x00, 50)).getSW());
+    }
+
+    /**
+     * AES-CBC, without padding
+     */
+    private static byte[] aes(int mode, byte[] key, byte[] iv, byte[] data) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        return cipher.doFinal(data);
+    }
+
+    /**
+     * Pad as in ISO/IEC 9797-1 method 2, to a whole number of AES blocks
+     */
+    private static byte[] pad(byte[] data) {
+        byte[] padded = java.util.Arrays.copyOf(data, (data.length / 16 + 1) * 16);
+        padded[data.length] = (byte)0x80;
+        return padded;
+    }
+
+    /**
+     * AES-CMAC, as in NIST SP 800-38B
+     */
+    private static byte[] cmac(byte[] key, byte[] data) throws Exception {
+        byte[] subkey = aes(Cipher.ENCRYPT_MODE, key, new byte[16], new byte[16]);
+        int doublings = (data.length != 0 && data.length % 16 == 0) ? 1 : 2;
+        for (int d = 0; d < doublings; d++) {
+            boolean carry = subkey[0] < 0;
+            for (int i = 0; i < 15; i++) {
+                subkey[i] = (byte)((subkey[i] << 1) | ((subkey[i + 1] >> 7) & 1));
+            }
+            subkey[15] = (byte)((subkey[15] << 1) ^ (carry ? 0x87 : 0));
+        }
+        byte[] message = (doublings == 1) ? data.clone() : pad(data);
+        message = java.util.Arrays.copyOf(message, (doublings == 1) ? data.length : ((data.length / 16) + 1) * 16);
+        for (int i = 0; i < 16; i++) {
+            message[message.length - 16 + i] ^= subkey[i];
+        }
+        byte[] encrypted = aes(Cipher.ENCRYPT_MODE, key, new byte[16], message);
+        return java.util.Arrays.copyOfRange(encrypted, encrypted.length - 16, encrypted.length);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = java.util.Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static void put(ElementaryFile file, byte[] tlv) {
+        short record = file.beginPut(tlv, (short)0, (short)1, (short)1, DataObject.FLAGS_NONE, true, ElementaryFile.RECORD_NONE);
+        file.writeValue(record, (short)0, tlv, (short)1, (short)1);
+        file.endPut(record, (short)1, new short[DerParser.CURSOR_SIZE]);
+    }
+
+    /**
+     * Ensure that long-form lengths and multi-byte tags are decoded, and that malformed headers are rejected.
+     */
+    @Test
+    public void testLongFormLengths() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // 5F 20 [81 C8] followed by 200 bytes, then DF 81 01 [82 03 E8] followed by 1000 bytes
+        byte[] first = new byte[200];
+        byte[] second = new byte[1000];
+        for (int i = 0; i < second.length; i++) {
+            second[i] = (byte)(i * 7);
+            if (i < first.length) {
+                first[i] = (byte)(0xFF - i);
+            }
+        }
+        byte[] batch = concat(concat(new byte[] {(byte)0x5F, (byte)0x20, (byte)0x81, (byte)0xC8}, first),
+                concat(new byte[] {(byte)0xDF, (byte)0x81, (byte)0x01, (byte)0x82, (byte)0x03, (byte)0xE8}, second));
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, batch)).getSW());
+
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0x5F, (byte)0x20}, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(first, response.getData());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xDF, (byte)0x81, (byte)0x01}, 0x10000));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(second, response.getData());
+
+        // Four byte tags, unsupported length forms and values running past the command are all rejected
+        byte[][] malformed = new byte[][] {
+                {(byte)0xDF, (byte)0x81, (byte)0x81, (byte)0x01, (byte)0x01, (byte)0x00},
+                {(byte)0xC1, (byte)0x83, (byte)0x00, (byte)0x00, (byte)0x01, (byte)0x00},
+                {(byte)0xC1, (byte)0x80, (byte)0x00, (byte)0x00},
+                {(byte)0xC1, (byte)0x81, (byte)0x05, (byte)0x00},
+                {(byte)0xC1, (byte)0x82, (byte)0x00},
+        };
+        for (byte[] data : malformed) {
+            Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, data)).getSW());
+        }
+    }
+
+    /**
+     * Ensure that data objects nested within a constructed data object can be read by tag path.
+     */
+    @Test
+    public void testConstructedNavigation() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // 6F { 84 [name], A5 { 50 [label], BF0C { 5F50 [url] } } }
+        byte[] name = {(byte)0xA0, 0x00, 0x00, 0x01, 0x02};
+        byte[] label = "ISOSCELES".getBytes();
+        byte[] url = "https://example.com".getBytes();
+        byte[] discretionary = concat(new byte[] {(byte)0x5F, 0x50, (byte)url.length}, url);
+        byte[] issuer = concat(new byte[] {(byte)0xBF, 0x0C, (byte)discretionary.length}, discretionary);
+        byte[] proprietary = concat(concat(new byte[] {0x50, (byte)label.length}, label), issuer);
+        byte[] template = concat(concat(new byte[] {(byte)0x84, (byte)name.length}, name),
+                concat(new byte[] {(byte)0xA5, (byte)proprietary.length}, proprietary));
+        byte[] fci = concat(new byte[] {0x6F, (byte)template.length}, template);
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, fci)).getSW());
+
+        // The whole template, then progressively deeper elements
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {0x6F}, 0x100));
+        Assertions.assertArrayEquals(template, response.getData());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {0x6F, (byte)0x84}, 0x100));
+        Assertions.assertArrayEquals(name, response.getData());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {0x6F, (byte)0xA5, 0x50}, 0x100));
+        Assertions.assertArrayEquals(label, response.getData());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00,
+                new byte[] {0x6F, (byte)0xA5, (byte)0xBF, 0x0C, 0x5F, 0x50}, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(url, response.getData());
+
+        // Elements are only found at their own level
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00,
+                new byte[] {0x6F, 0x50}, 0x100)).getSW());
+
+        // Rewriting the template replaces its index
+        byte[] replacement = {0x6F, 0x05, (byte)0xA5, 0x03, 0x50, 0x01, 0x42};
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, replacement)).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {0x6F, (byte)0xA5, 0x50}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x42}, response.getData());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00,
+                new byte[] {0x6F, (byte)0x84}, 0x100)).getSW());
+
+        // A constructed value must itself be well formed
+        Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00,
+                new byte[] {0x70, 0x03, 0x50, 0x05, 0x00})).getSW());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00,
+                new byte[] {0x70}, 0x100)).getSW());
+    }
+
+    /**
+     * Ensure that files can be created, and selected by file identifier, DF name and path.
+     */
+    @Test
+    public void testFileTree() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // MF { DF 1000 "A0000001020304" { EF 1001, DF 1100 "A0000001020305" } }
+        byte[] outerName = {(byte)0xA0, 0x00, 0x00, 0x01, 0x02, 0x03, 0x04};
+        byte[] innerName = {(byte)0xA0, 0x00, 0x00, 0x01, 0x02, 0x03, 0x05};
+        byte[] outer = concat(new byte[] {0x62, 0x10, (byte)0x83, 0x02, 0x10, 0x00, (byte)0x82, 0x01, 0x38, (byte)0x84, 0x07}, outerName);
+        byte[] elementary = {0x62, 0x0B, (byte)0x83, 0x02, 0x10, 0x01, (byte)0x82, 0x01, 0x39, (byte)0x80, 0x02, 0x00, 0x40};
+        byte[] inner = concat(new byte[] {0x62, 0x10, (byte)0x83, 0x02, 0x11, 0x00, (byte)0x82, 0x01, 0x38, (byte)0x84, 0x07}, innerName);
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, outer)).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, elementary)).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, inner)).getSW());
+
+        // Identifiers are unique among siblings, and names throughout the tree
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xA4, 0x03, 0x0C)).getSW());
+        Assertions.assertEquals(0x6A89, manager.transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, elementary)).getSW());
+        byte[] duplicate = concat(new byte[] {0x62, 0x10, (byte)0x83, 0x02, 0x12, 0x00, (byte)0x82, 0x01, 0x38, (byte)0x84, 0x07}, innerName);
+        Assertions.assertEquals(0x6A8A, manager.transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, duplicate)).getSW());
+
+        // The DF name is returned in the FCI, repeatedly
+        byte[] innerFci = concat(new byte[] {0x6F, 0x0D, (byte)0x83, 0x02, 0x11, 0x00, (byte)0x84, 0x07}, innerName);
+        for (int i = 0; i < 2; i++) {
+            ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, innerName, 0x100));
+            Assertions.assertEquals(0x9000, response.getSW());
+            Assertions.assertArrayEquals(innerFci, response.getData());
+        }
+
+        // By path, by identifier, and back up to the parent
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xA4, 0x08, 0x00, new byte[] {0x10, 0x00, 0x11, 0x00}, 0x100));
+        Assertions.assertArrayEquals(innerFci, response.getData());
+        response = manager.transmit(new CommandAPDU(0x00, 0xA4, 0x03, 0x00, 0x100));
+        Assertions.assertArrayEquals(concat(new byte[] {0x6F, 0x0D, (byte)0x83, 0x02, 0x10, 0x00, (byte)0x84, 0x07}, outerName), response.getData());
+        response = manager.transmit(new CommandAPDU(0x00, 0xA4, 0x02, 0x00, new byte[] {0x10, 0x01}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x6F, 0x04, (byte)0x83, 0x02, 0x10, 0x01}, response.getData());
+        Assertions.assertEquals(0x6A82, manager.transmit(new CommandAPDU(0x00, 0xA4, 0x01, 0x0C, new byte[] {0x10, 0x01})).getSW());
+        Assertions.assertEquals(0x6A82, manager.transmit(new CommandAPDU(0x00, 0xA4, 0x09, 0x0C, new byte[] {0x11, 0x00, 0x12, 0x00})).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xA4, 0x00, 0x0C, new byte[] {0x11, 0x00})).getSW());
+
+        // Data objects are kept apart in each file, and files of the current DF are addressed by identifier
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, new byte[] {(byte)0xC1, 0x01, 0x11})).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xA4, 0x03, 0x0C)).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x10, 0x01, new byte[] {(byte)0xC1, 0x01, 0x22})).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x10, 0x01, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x22}, response.getData());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x11, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x11}, response.getData());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100)).getSW());
+
+        // Reselecting the applet returns to the master file
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        Assertions.assertEquals(0x6A86, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x10, 0x01, new byte[] {(byte)0xC1}, 0x100)).getSW());
+    }
+
+    /**
+     * Ensure that the data objects of a command, or of a command chain, are stored together or not at all.
+     */
+    @Test
+    public void testAtomicBatch() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC1, 0x01, 0x11})).getSW());
+
+        // A malformed data object discards the complete ones before it
+        byte[] truncated = {(byte)0xC1, 0x01, 0x22, (byte)0xC2, 0x01, 0x33, (byte)0xC3, 0x05, 0x00};
+        Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, truncated)).getSW());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC2}, 0x100)).getSW());
+
+        // Likewise across a chain
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x10, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC4, 0x01, 0x44})).getSW());
+        Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC5, 0x03, 0x55})).getSW());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC4}, 0x100)).getSW());
+
+        // A complete chain is published as a whole
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x10, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC4, 0x01, 0x44})).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC5, 0x01, 0x55})).getSW());
+        Assertions.assertArrayEquals(new byte[] {0x44}, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC4}, 0x100)).getData());
+        Assertions.assertArrayEquals(new byte[] {0x55}, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC5}, 0x100)).getData());
+
+        // A batch with more new tags than free slots is refused before anything is stored
+        byte[] tooMany = new byte[6 * 3];
+        for (int i = 0; i < 6; i++) {
+            tooMany[i * 3] = (byte)(0xD1 + i);
+            tooMany[i * 3 + 1] = 0x01;
+            tooMany[i * 3 + 2] = (byte)i;
+        }
+        Assertions.assertEquals(0x6A84, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, tooMany)).getSW());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xD1}, 0x100)).getSW());
+
+        // The last of repeated tags wins
+        byte[] repeated = {(byte)0xC1, 0x01, 0x01, (byte)0xC1, 0x02, 0x02, 0x02};
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, repeated)).getSW());
+        Assertions.assertArrayEquals(new byte[] {0x02, 0x02}, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100)).getData());
+    }
+
+    /**
+     * Ensure that values rewritten at the same length are updated, alone or alongside other data objects.
+     */
+    @Test
+    public void testSameLengthOverwrite() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // A counter, rewritten at a fixed size
+        for (int i = 0; i < 64; i++) {
+            byte[] counter = {(byte)0xC1, 0x04, 0x00, 0x00, (byte)(i >> 8), (byte)i};
+            Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, counter)).getSW());
+        }
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x00, 0x00, 0x00, 0x3F}, response.getData());
+
+        // Together with another data object, and then at a different length
+        byte[] batch = {(byte)0xC1, 0x04, 0x01, 0x02, 0x03, 0x04, (byte)0xC2, 0x01, 0x05};
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, batch)).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x01, 0x02, 0x03, 0x04}, response.getData());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC1, 0x02, 0x06, 0x07})).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x06, 0x07}, response.getData());
+
+        // Constructed values are always re-indexed
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {0x70, 0x03, 0x50, 0x01, 0x01})).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {0x70, 0x03, 0x51, 0x01, 0x02})).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {0x70, 0x51}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x02}, response.getData());
+    }
+
+    /**
+     * Ensure that orphaned space is reported, and reclaimed on request.
+     */
+    @Test
+    public void testMaintenance() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        byte[] status = {(byte)0xDF, 0x20};
+
+        // Growing a value orphans its old record: 5 header bytes, a one byte tag and 100 value bytes
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, concat(new byte[] {(byte)0xC1, 0x64}, new byte[100]))).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, concat(new byte[] {(byte)0xC1, 0x6E}, new byte[110]))).getSW());
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, status, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(new byte[] {0x08, 0x00, 0x07, 0x22, 0x00, 0x6A, 0x04, 0x00, 0x00, 0x01, 0x00, 0x07}, response.getData());
+
+        // Maintenance reclaims it
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x21, 0x00})).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, status, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x08, 0x00, 0x07, (byte)0x8C, 0x00, 0x00, 0x04, 0x00, 0x00, 0x01, 0x00, 0x07}, response.getData());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(new byte[110], response.getData());
+
+        // Virtual data objects cannot be stored
+        Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x20, 0x01, 0x00})).getSW());
+        Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x21, 0x01, 0x00})).getSW());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x21}, 0x100)).getSW());
+    }
+
+    /**
+     * Ensure that capacities are taken from the install parameters.
+     */
+    @Test
+    public void testInstallParameters() throws Exception {
+        // Two data objects in a 256 byte arena, and one file per DF
+        byte[] configuration = {(byte)0x80, 0x01, 0x02, (byte)0x81, 0x02, 0x01, 0x00, (byte)0x86, 0x01, 0x01};
+        byte[] installParams = concat(java.util.Arrays.copyOf(INSTALL_PARAMS, INSTALL_PARAMS.length - 1), concat(new byte[] {(byte)configuration.length}, configuration));
+        CardManager manager = connect(installParams);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x20}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, (byte)0x80, 0x00, 0x00, 0x00, 0x02}, response.getData());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC1, 0x01, 0x01, (byte)0xC2, 0x01, 0x02})).getSW());
+        Assertions.assertEquals(0x6A84, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC3, 0x01, 0x03})).getSW());
+
+        byte[] fcp = {0x62, 0x07, (byte)0x83, 0x02, 0x10, 0x00, (byte)0x82, 0x01, 0x39};
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, fcp)).getSW());
+        fcp[5] = 0x01;
+        Assertions.assertEquals(0x6A84, manager.transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, fcp)).getSW());
+    }
+
+    /**
+     * Ensure that a tag list returns several data objects in one response.
+     */
+    @Test
+    public void testTagList() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        byte[] first = {(byte)0xC1, 0x01, 0x11};
+        byte[] second = concat(new byte[] {(byte)0xC2, (byte)0x81, (byte)0x80}, new byte[128]);
+        byte[] third = concat(new byte[] {0x5F, 0x01, 0x64}, new byte[100]);
+        second[3] = 0x22;
+        third[3] = 0x33;
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, concat(first, concat(second, third)))).getSW());
+
+        // Returned in the order listed, and continued with GET RESPONSE past Le
+        byte[] list = {0x5C, 0x04, 0x5F, 0x01, (byte)0xC1, (byte)0xC2};
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, list, 0x80));
+        Assertions.assertEquals(0x616D, response.getSW());
+        byte[] data = response.getData();
+        response = manager.transmit(new CommandAPDU(0x00, 0xC0, 0x00, 0x00, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(concat(third, concat(first, second)), concat(data, response.getData()));
+
+        // Every data object listed must exist
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {0x5C, 0x02, (byte)0xC1, (byte)0xC3}, 0x100)).getSW());
+        Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {0x5C, 0x02, (byte)0xC1}, 0x100)).getSW());
+    }
+
+    /**
+     * Ensure that slices of a value can be read and written by offset.
+     */
+    @Test
+    public void testPartialAccess() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        byte[] value = new byte[200];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte)i;
+        }
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, concat(new byte[] {(byte)0xC1, (byte)0x81, (byte)0xC8}, value))).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xE1, 0x03, (byte)0x81, 0x01, 0x01})).getSW());
+
+        // Reads return at most Le bytes, and stop at the end of the value
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xB1, 0x3F, 0x00, new byte[] {0x5C, 0x01, (byte)0xC1, 0x54, 0x01, 0x10}, 4));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(new byte[] {0x10, 0x11, 0x12, 0x13}, response.getData());
+        response = manager.transmit(new CommandAPDU(0x00, 0xB1, 0x3F, 0x00, new byte[] {0x5C, 0x01, (byte)0xC1, 0x54, 0x02, 0x00, (byte)0xC4}, 0x20));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(java.util.Arrays.copyOfRange(value, 196, 200), response.getData());
+
+        // Writes patch the value in place
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xD7, 0x3F, 0x00, new byte[] {0x5C, 0x01, (byte)0xC1, 0x54, 0x01, 0x50, 0x53, 0x02, 0x7A, 0x7B})).getSW());
+        value[0x50] = 0x7A;
+        value[0x51] = 0x7B;
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(value, response.getData());
+
+        // Slices must lie within the value, and constructed values are only replaced whole
+        Assertions.assertEquals(0x6B00, manager.transmit(new CommandAPDU(0x00, 0xB1, 0x3F, 0x00, new byte[] {0x5C, 0x01, (byte)0xC1, 0x54, 0x01, (byte)0xC9}, 0x20)).getSW());
+        Assertions.assertEquals(0x6B00, manager.transmit(new CommandAPDU(0x00, 0xD7, 0x3F, 0x00, new byte[] {0x5C, 0x01, (byte)0xC1, 0x54, 0x01, (byte)0xC7, 0x53, 0x02, 0x00, 0x00})).getSW());
+        Assertions.assertEquals(0x6981, manager.transmit(new CommandAPDU(0x00, 0xD7, 0x3F, 0x00, new byte[] {0x5C, 0x01, (byte)0xE1, 0x54, 0x01, 0x00, 0x53, 0x01, 0x00})).getSW());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xB1, 0x3F, 0x00, new byte[] {0x5C, 0x01, (byte)0xC2, 0x54, 0x01, 0x00}, 0x20)).getSW());
+    }
+
+    /**
+     * Ensure that values stored compressed are expanded when read.
+     */
+    @Test
+    public void testCompressedStorage() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // 300 repeated bytes and 5 literal bytes, in 12 stored bytes
+        byte[] compressed = {(byte)0x81, (byte)0xAA, (byte)0x81, (byte)0xAA, (byte)0xD5, (byte)0xAA, 0x04, 0x31, 0x32, 0x33, 0x34, 0x35};
+        byte[] expanded = new byte[305];
+        java.util.Arrays.fill(expanded, 0, 300, (byte)0xAA);
+        System.arraycopy(compressed, 7, expanded, 300, 5);
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, concat(new byte[] {(byte)0xDF, 0x23, 0x00, (byte)0xC1, 0x0C}, compressed))).getSW());
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x20}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x08, 0x00, 0x07, (byte)0xEE}, java.util.Arrays.copyOf(response.getData(), 4));
+
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertEquals(0x6131, response.getSW());
+        byte[] received = response.getData();
+        response = manager.transmit(new CommandAPDU(0x00, 0xC0, 0x00, 0x00, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(expanded, concat(received, response.getData()));
+
+        // Tag lists give the expanded length
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC2, 0x01, 0x02})).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {0x5C, 0x02, (byte)0xC1, (byte)0xC2}, 0x100));
+        Assertions.assertEquals(0x6138, response.getSW());
+        received = response.getData();
+        response = manager.transmit(new CommandAPDU(0x00, 0xC0, 0x00, 0x00, 0x100));
+        byte[] expected = concat(new byte[] {(byte)0xC1, (byte)0x82, 0x01, 0x31}, concat(expanded, new byte[] {(byte)0xC2, 0x01, 0x02}));
+        Assertions.assertArrayEquals(expected, concat(received, response.getData()));
+
+        // Compressed values are only ever read whole
+        Assertions.assertEquals(0x6981, manager.transmit(new CommandAPDU(0x00, 0xB1, 0x3F, 0x00, new byte[] {0x5C, 0x01, (byte)0xC1, 0x54, 0x01, 0x00}, 0x10)).getSW());
+
+        // Malformed or misplaced compression is rejected
+        Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x23, 0x00, (byte)0xC3, 0x02, 0x05, 0x41})).getSW());
+        Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x23, 0x00})).getSW());
+        Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x23, 0x00, (byte)0xE1, 0x03, (byte)0x81, 0x01, 0x01})).getSW());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC3}, 0x100)).getSW());
+
+        // Replacing a compressed value with a plain one of the same stored length stores it plain
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, concat(new byte[] {(byte)0xC1, 0x0C}, compressed))).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(compressed, response.getData());
+    }
+
+    /**
+     * Ensure that commands are accepted on every logical channel the applet keeps state for, and that one channel's
+     * pending state is kept from the others.  jCardSim reports every command as arriving on the basic channel, so the
+     * state of other channels is checked on the objects that keep it.
+     */
+    @Test
+    public void testLogicalChannels() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        byte[] aid = java.util.Arrays.copyOfRange(INSTALL_PARAMS, 1, 1 + INSTALL_PARAMS[0]);
+        byte[] status = {(byte)0xDF, 0x20};
+
+        // The channel number is ignored when checking the class byte, both in first and further interindustry classes
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x01, 0xA4, 0x04, 0x00, aid, 0x100)).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x03, 0xCB, 0x3F, 0xFF, status, 0x100)).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x13, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC1, 0x02, 0x01})).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x03, 0xDB, 0x3F, 0x00, new byte[] {0x02})).getSW());
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x42, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(new byte[] {0x01, 0x02}, response.getData());
+        Assertions.assertEquals(0x6E00, manager.transmit(new CommandAPDU(0x04, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100)).getSW());
+
+        // Working RAM a pending response is sent from outlives commands on the other channels until it is finished
+        Workspace workspace = new Workspace((short)32, (byte)2);
+        workspace.release();
+        short held = workspace.allocate((short)8);
+        workspace.hold((byte)1);
+        workspace.release();
+        Assertions.assertEquals(held + 8, workspace.allocate((short)4));
+        workspace.drop((byte)1);
+        workspace.release();
+        Assertions.assertEquals(held, workspace.allocate((short)4));
+
+        // And a command chain in progress on one channel is neither ended nor continued by commands on another
+        ElementaryFile file = new ElementaryFile((short)4, (short)0, (short)64, (short)0, new byte[] {0x12, 0x00}, true);
+        DataObjectReceiver receiver = new DataObjectReceiver(workspace, new Statistics(), (short)4, true);
+        receiver.begin(file, (byte)1);
+        receiver.setChaining(true);
+        Assertions.assertTrue(receiver.isBusy((byte)0));
+        receiver.reset((byte)0);
+        Assertions.assertTrue(receiver.isChaining(file, (byte)1));
+        receiver.reset((byte)1);
+        Assertions.assertFalse(receiver.isBusy((byte)0));
+    }
+
+    /**
+     * Ensure that commands, errors, traffic and writes are counted and reported.
+     */
+    @Test
+    public void testStatistics() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC1, 0x01, (byte)0xAA})).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC1, 0x01, (byte)0xBB})).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100)).getSW());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC2}, 0x100)).getSW());
+        Assertions.assertEquals(0x6D00, manager.transmit(new CommandAPDU(0x00, 0x20, 0x00, 0x00)).getSW());
+
+        // The read itself is counted, but not the response it is still to send
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x24}, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        int[] expected = {1, 0, 0, 3, 2, 0, 0, 0, 0, 1, 2, 10, 20, 2, 0};
+        ByteBuffer counters = ByteBuffer.wrap(response.getData());
+        Assertions.assertEquals(expected.length * 4, counters.remaining());
+        for (int expectedCount : expected) {
+            Assertions.assertEquals(expectedCount, counters.getInt());
+        }
+    }
+
+    /**
+     * Ensure that writes must be protected once a static key is installed, and that protected commands and responses
+     * are checked, deciphered and chained.
+     */
+    @Test
+    public void testSecureMessaging() throws Exception {
+        byte[] key = new byte[16];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte)i;
+        }
+        byte[] keyParameter = concat(new byte[] {(byte)0xC0, 0x10}, key);
+        byte[] installParams = concat(java.util.Arrays.copyOf(INSTALL_PARAMS, INSTALL_PARAMS.length - 1), concat(new byte[] {(byte)keyParameter.length}, keyParameter));
+        CardManager manager = connect(installParams);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // The session keys are derived from the session counter
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x25}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x00, 0x01}, response.getData());
+        byte[] derivation = new byte[16];
+        derivation[15] = 0x01;
+        derivation[0] = 0x04;
+        byte[] encryptionKey = aes(Cipher.ENCRYPT_MODE, key, new byte[16], derivation);
+        derivation[0] = 0x06;
+        byte[] macKey = aes(Cipher.ENCRYPT_MODE, key, new byte[16], derivation);
+
+        // Writes in clear are refused
+        byte[] value = {(byte)0xC1, 0x02, 0x01, 0x02};
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, value)).getSW());
+
+        // A protected write returns a protected status, MACed from the command's MAC
+        byte[] chain = new byte[16];
+        byte[] header = {0x0C, (byte)0xDB, 0x3F, 0x00};
+        byte[] counter = new byte[16];
+        counter[15] = 0x01;
+        byte[] cryptogram = concat(new byte[] {(byte)0x87, 0x11, 0x01}, aes(Cipher.ENCRYPT_MODE, encryptionKey, aes(Cipher.ENCRYPT_MODE, encryptionKey, new byte[16], counter), pad(value)));
+        chain = cmac(macKey, concat(chain, concat(header, cryptogram)));
+        byte[] write = concat(cryptogram, concat(new byte[] {(byte)0x8E, 0x08}, java.util.Arrays.copyOf(chain, 8)));
+        response = manager.transmit(new CommandAPDU(0x0C, 0xDB, 0x3F, 0x00, write, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        byte[] status = {(byte)0x99, 0x02, (byte)0x90, 0x00};
+        Assertions.assertArrayEquals(concat(status, concat(new byte[] {(byte)0x8E, 0x08}, java.util.Arrays.copyOf(cmac(macKey, concat(chain, status)), 8))), response.getData());
+
+        // A protected read returns its data enciphered
+        header[1] = (byte)0xCB;
+        counter[15] = 0x02;
+        cryptogram = concat(new byte[] {(byte)0x87, 0x11, 0x01}, aes(Cipher.ENCRYPT_MODE, encryptionKey, aes(Cipher.ENCRYPT_MODE, encryptionKey, new byte[16], counter), pad(new byte[] {(byte)0xC1})));
+        chain = cmac(macKey, concat(chain, concat(header, cryptogram)));
+        response = manager.transmit(new CommandAPDU(0x0C, 0xCB, 0x3F, 0x00, concat(cryptogram, concat(new byte[] {(byte)0x8E, 0x08}, java.util.Arrays.copyOf(chain, 8))), 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        byte[] data = response.getData();
+        Assertions.assertEquals(0x21, data.length);
+        Assertions.assertArrayEquals(java.util.Arrays.copyOf(cmac(macKey, concat(chain, java.util.Arrays.copyOf(data, 0x17))), 8), java.util.Arrays.copyOfRange(data, 0x19, 0x21));
+        counter[0] = (byte)0x80;
+        byte[] plain = aes(Cipher.DECRYPT_MODE, encryptionKey, aes(Cipher.ENCRYPT_MODE, encryptionKey, new byte[16], counter), java.util.Arrays.copyOfRange(data, 3, 0x13));
+        Assertions.assertArrayEquals(pad(new byte[] {0x01, 0x02}), plain);
+
+        // Reads in clear are still allowed
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x01, 0x02}, response.getData());
+
+        // A replayed command fails its MAC, which ends the session
+        Assertions.assertEquals(0x6988, manager.transmit(new CommandAPDU(0x0C, 0xDB, 0x3F, 0x00, write, 0x100)).getSW());
+        Assertions.assertEquals(0x6882, manager.transmit(new CommandAPDU(0x0C, 0xDB, 0x3F, 0x00, write, 0x100)).getSW());
+
+        // Reselecting starts a new session, with new keys
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x25}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x00, 0x02}, response.getData());
+
+        // The session belongs to the logical channel that started it: selecting the applet on another channel leaves
+        // it open, and protected commands there are refused.  The simulator reports every command on the basic
+        // channel, so the channels are driven directly.
+        SecureMessaging channels = new SecureMessaging();
+        channels.setStaticKey(key, (short)0);
+        channels.beginSession((byte)1);
+        channels.beginSession((byte)0);
+        Assertions.assertEquals(1, channels.getSessionCounter());
+        Assertions.assertTrue(channels.isSessionChannel((byte)1));
+        Assertions.assertFalse(channels.isSessionChannel((byte)0));
+        try {
+            channels.unwrapCommand((byte)0, write, (short)0, (short)write.length, new short[4]);
+            Assertions.fail("A protected command was accepted on another channel");
+        } catch (ISOException e) {
+            Assertions.assertEquals(0x6882, e.getReason());
+        }
+        channels.endSession();
+        channels.beginSession((byte)0);
+        Assertions.assertEquals(2, channels.getSessionCounter());
+        Assertions.assertTrue(channels.isSessionChannel((byte)0));
+    }
+
+    /**
+     * Ensure that writes need the terminal to answer a challenge once an authentication key is installed.
+     */
+    @Test
+    public void testExternalAuthentication() throws Exception {
+        byte[] key = new byte[16];
+        java.util.Arrays.fill(key, (byte)0x42);
+        byte[] keyParameter = concat(new byte[] {(byte)0xC1, 0x10}, key);
+        byte[] installParams = concat(java.util.Arrays.copyOf(INSTALL_PARAMS, INSTALL_PARAMS.length - 1), concat(new byte[] {(byte)keyParameter.length}, keyParameter));
+        CardManager manager = connect(installParams);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        CommandAPDU write = new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC1, 0x01, 0x01});
+
+        // Writes and answers without a challenge are refused
+        Assertions.assertEquals(0x6982, manager.transmit(write).getSW());
+        Assertions.assertEquals(0x6985, manager.transmit(new CommandAPDU(0x00, 0x82, 0x00, 0x00, new byte[16])).getSW());
+
+        // A wrong answer spends the challenge
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0x84, 0x00, 0x00, 0x10));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertEquals(16, response.getData().length);
+        byte[] answer = aes(Cipher.ENCRYPT_MODE, key, new byte[16], response.getData());
+        answer[0] ^= 0x01;
+        Assertions.assertEquals(0x6300, manager.transmit(new CommandAPDU(0x00, 0x82, 0x00, 0x00, answer)).getSW());
+        answer[0] ^= 0x01;
+        Assertions.assertEquals(0x6985, manager.transmit(new CommandAPDU(0x00, 0x82, 0x00, 0x00, answer)).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(write).getSW());
+
+        // The right answer to a fresh challenge allows writes until the applet is selected again
+        response = manager.transmit(new CommandAPDU(0x00, 0x84, 0x00, 0x00, 0x10));
+        answer = aes(Cipher.ENCRYPT_MODE, key, new byte[16], response.getData());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0x82, 0x00, 0x00, answer)).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(write).getSW());
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(write).getSW());
+
+        // Each logical channel authenticates on its own, and resetting one leaves the others as they are.  The
+        // simulator reports every command on the basic channel, so the channels are driven directly.
+        ExternalAuthentication channels = new ExternalAuthentication(RandomData.getInstance(RandomData.ALG_SECURE_RANDOM), (byte)2);
+        channels.setKey(key, (short)0);
+        byte[] challenge = new byte[16];
+        channels.generateChallenge((byte)1, challenge, (short)0);
+        answer = aes(Cipher.ENCRYPT_MODE, key, new byte[16], challenge);
+        try {
+            channels.authenticate((byte)0, answer, (short)0, (short)answer.length);
+            Assertions.fail("The answer was accepted on another channel");
+        } catch (ISOException e) {
+            Assertions.assertEquals(0x6985, e.getReason());
+        }
+        channels.authenticate((byte)1, answer, (short)0, (short)answer.length);
+        Assertions.assertTrue(channels.isAuthenticated((byte)1));
+        Assertions.assertFalse(channels.isAuthenticated((byte)0));
+        channels.reset((byte)0);
+        Assertions.assertTrue(channels.isAuthenticated((byte)1));
+        channels.reset((byte)1);
+        Assertions.assertFalse(channels.isAuthenticated((byte)1));
+    }
+
+    /**
+     * Ensure that the access conditions of files and data objects separate reading from writing.
+     */
+    @Test
+    public void testAccessConditions() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // Without an authentication key, a data object that needs authentication to write is read only
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x26, 0x01, 0x20, (byte)0xC1, 0x01, 0x01})).getSW());
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x01}, response.getData());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC1, 0x01, 0x02})).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC1, 0x02, 0x02, 0x03})).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xD7, 0x3F, 0x00, new byte[] {0x5C, 0x01, (byte)0xC1, 0x54, 0x01, 0x00, 0x53, 0x01, 0x02})).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xB1, 0x3F, 0x00, new byte[] {0x5C, 0x01, (byte)0xC1, 0x54, 0x01, 0x00}, 0x10));
+        Assertions.assertArrayEquals(new byte[] {0x01}, response.getData());
+
+        // And one that needs authentication to read is write only, alone or in a tag list
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x26, 0x01, 0x08, (byte)0xC2, 0x01, 0x05})).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC2, 0x01, 0x06})).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC2}, 0x100)).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {0x5C, 0x02, (byte)0xC1, (byte)0xC2}, 0x100)).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xB1, 0x3F, 0x00, new byte[] {0x5C, 0x01, (byte)0xC2, 0x54, 0x01, 0x00}, 0x10)).getSW());
+        Assertions.assertEquals(0x6A80, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x26, 0x01, 0x40, (byte)0xC3, 0x01, 0x00})).getSW());
+
+        // A file's access conditions apply to everything written to it, and to the files created in it
+        byte[] file = {0x62, 0x0E, (byte)0x83, 0x02, 0x10, 0x00, (byte)0x82, 0x01, 0x38, (byte)0x86, 0x01, 0x08, (byte)0x80, 0x02, 0x00, 0x40};
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, file)).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, new byte[] {(byte)0xC1, 0x01, 0x01})).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[] {(byte)0xC1}, 0x100)).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[] {(byte)0xDF, 0x20}, 0x100)).getSW());
+        file = new byte[] {0x62, 0x0A, (byte)0x83, 0x02, 0x11, 0x00, (byte)0x82, 0x01, 0x38, (byte)0x86, 0x01, 0x20};
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, file)).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, new byte[] {(byte)0xC1, 0x01, 0x01})).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, new byte[] {(byte)0xDF, 0x21, 0x00})).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, new byte[] {(byte)0xDF, 0x23, 0x00})).getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, new byte[] {(byte)0xDF, 0x26, 0x01, 0x00})).getSW());
+        file[5] = 0x12;
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, file)).getSW());
+
+        // Authentication meets the conditions until the applet is selected again
+        byte[] key = new byte[16];
+        java.util.Arrays.fill(key, (byte)0x42);
+        byte[] keyParameter = concat(new byte[] {(byte)0xC1, 0x10}, key);
+        byte[] installParams = concat(java.util.Arrays.copyOf(INSTALL_PARAMS, INSTALL_PARAMS.length - 1), concat(new byte[] {(byte)keyParameter.length}, keyParameter));
+        manager = connectRaw(installParams);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0x84, 0x00, 0x00, 0x10));
+        byte[] answer = aes(Cipher.ENCRYPT_MODE, key, new byte[16], response.getData());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0x82, 0x00, 0x00, answer)).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x26, 0x01, 0x08, (byte)0xC2, 0x01, 0x05})).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC2}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x05}, response.getData());
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        Assertions.assertEquals(0x6982, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC2}, 0x100)).getSW());
+
+        // Including those of a file that needs authentication to read and write, for requests and its storage status
+        response = manager.transmit(new CommandAPDU(0x00, 0x84, 0x00, 0x00, 0x10));
+        answer = aes(Cipher.ENCRYPT_MODE, key, new byte[16], response.getData());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0x82, 0x00, 0x00, answer)).getSW());
+        file = new byte[] {0x62, 0x0A, (byte)0x83, 0x02, 0x13, 0x00, (byte)0x82, 0x01, 0x38, (byte)0x86, 0x01, 0x28};
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xE0, 0x00, 0x00, file)).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0xFF, new byte[] {(byte)0xDF, 0x21, 0x00, (byte)0xC1, 0x01, 0x01})).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0xFF, new byte[] {(byte)0xDF, 0x20}, 0x100)).getSW());
+    }
+
+    /**
+     * Ensure that an empty value deletes a data object, and frees its slot for another.
+     */
+    @Test
+    public void testDeletion() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+
+        // A deletion still applies to the right data object after a later data object of its batch compacts the arena
+        byte[] large = new byte[601];
+        java.util.Arrays.fill(large, (byte)0x11);
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, concat(new byte[] {(byte)0xC1, (byte)0x82, 0x02, 0x58}, java.util.Arrays.copyOf(large, 600)))).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, concat(new byte[] {(byte)0xC2, (byte)0x82, 0x02, 0x58}, java.util.Arrays.copyOf(large, 600)))).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, concat(new byte[] {(byte)0xC1, (byte)0x82, 0x02, 0x59}, large))).getSW());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, concat(new byte[] {(byte)0xC2, 0x00, (byte)0xC3, (byte)0x82, 0x01, 0x2C}, java.util.Arrays.copyOf(large, 300)))).getSW());
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x10000));
+        Assertions.assertArrayEquals(large, response.getData());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC2}, 0x100)).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC3}, 0x10000));
+        Assertions.assertEquals(300, response.getData().length);
+
+        // Fill the master file's eight slots, the last with a constructed data object
+        for (int i = 1; i <= 7; i++) {
+            Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)(0xC0 + i), 0x01, (byte)i})).getSW());
+        }
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xE1, 0x03, (byte)0x81, 0x01, 0x55})).getSW());
+        Assertions.assertEquals(0x6A84, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC8, 0x01, 0x08})).getSW());
+
+        // Deleting frees a slot for a later data object of the batch, and the data object moved into it keeps its structure
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC1, 0x00, (byte)0xC8, 0x01, 0x08})).getSW());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC1}, 0x100)).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xE1, (byte)0x81}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x55}, response.getData());
+
+        // Every remaining tag is still found after several deletions
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC2, 0x00, (byte)0xC4, 0x00, (byte)0xC6, 0x00})).getSW());
+        for (int i = 2; i <= 8; i++) {
+            response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)(0xC0 + i)}, 0x100));
+            if (i % 2 == 0 && i != 8) {
+                Assertions.assertEquals(0x6A88, response.getSW());
+            } else {
+                Assertions.assertArrayEquals(new byte[] {(byte)i}, response.getData());
+            }
+        }
+
+        // Within a batch, deletions and writes apply in order, and deleting a missing data object does nothing
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC3, 0x00, (byte)0xC3, 0x01, 0x33, (byte)0xC5, 0x01, 0x55, (byte)0xC5, 0x00, (byte)0xC9, 0x00})).getSW());
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC3}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x33}, response.getData());
+        Assertions.assertEquals(0x6A88, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC5}, 0x100)).getSW());
+
+        // C3, C7, C8 and E1 remain, leaving four free slots
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x20}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x00, 0x04, 0x00, 0x04}, java.util.Arrays.copyOfRange(response.getData(), 8, 12));
+    }
+
+    /**
+     * Ensure that files without a tag index find every data object, before and after they are reordered by reads.
+     */
+    @Test
+    public void testScanOrder() throws Exception {
+        byte[] installParams = concat(java.util.Arrays.copyOf(INSTALL_PARAMS, INSTALL_PARAMS.length - 1), new byte[] {0x03, (byte)0x89, 0x01, 0x00});
+        CardManager manager = connect(installParams);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        for (int i = 1; i <= 4; i++) {
+            Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)(0xC0 + i), 0x01, (byte)i})).getSW());
+        }
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xE1, 0x03, (byte)0x81, 0x01, 0x55})).getSW());
+
+        // The last data objects are read most, then moved to the front by maintenance
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xE1, (byte)0x81}, 0x100)).getSW());
+            Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xC4}, 0x100)).getSW());
+        }
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x21, 0x00})).getSW());
+
+        // Every data object, and the structure of the constructed one, is still found, including after a deletion
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xE1, (byte)0x81}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x55}, response.getData());
+        Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xDB, 0x3F, 0x00, new byte[] {(byte)0xC2, 0x00})).getSW());
+        for (int i = 1; i <= 4; i++) {
+            response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)(0xC0 + i)}, 0x100));
+            if (i == 2) {
+                Assertions.assertEquals(0x6A88, response.getSW());
+            } else {
+                Assertions.assertArrayEquals(new byte[] {(byte)i}, response.getData());
+            }
+        }
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {0x5C, 0x02, (byte)0xE1, (byte)0xC1}, 0x100));
+        Assertions.assertArrayEquals(new byte[] {(byte)0xE1, 0x03, (byte)0x81, 0x01, 0x55, (byte)0xC1, 0x01, 0x01}, response.getData());
+
+        // Only reads move a data object forward: writing one, and the lookups made to write it, leave the order as it
+        // is.  The order is not visible through commands, so a file is driven directly.
+        ElementaryFile file = new ElementaryFile((short)4, (short)0, (short)64, (short)0, new byte[] {0x12, 0x00}, false);
+        for (int i = 1; i <= 4; i++) {
+            put(file, new byte[] {(byte)(0xC0 + i), (byte)i});
+        }
+        byte[] tags = {(byte)0xC1, (byte)0xC2, (byte)0xC3, (byte)0xC4};
+        for (int i = 0; i < 3; i++) {
+            file.findSlot(tags, (short)3, (short)1, true);
+        }
+        file.reorder(new short[8]);
+        Assertions.assertEquals(0, file.findSlot(tags, (short)3, (short)1));
+        short written = file.findSlot(tags, (short)1, (short)1);
+        for (int i = 0; i < 5; i++) {
+            put(file, new byte[] {(byte)0xC2, (byte)i});
+        }
+        file.reorder(new short[8]);
+        Assertions.assertEquals(0, file.findSlot(tags, (short)3, (short)1));
+        Assertions.assertEquals(written, file.findSlot(tags, (short)1, (short)1));
+        for (int i = 0; i < 2; i++) {
+            file.findSlot(tags, (short)1, (short)1, true);
+        }
+        file.reorder(new short[8]);
+        Assertions.assertEquals(0, file.findSlot(tags, (short)1, (short)1));
+    }
+
+    /**
+     * Ensure that working RAM is reused from command to command, and its peak usage reported.
+     */
+    @Test
+    public void testWorkspace() throws Exception {
+        CardManager manager = connect(INSTALL_PARAMS);
+        Assertions.assertEquals(0x9000, manager.selectApplet().getSW());
+        byte[] workspace = {(byte)0xDF, 0x22};
+
+        // The peak so far is the PUT DATA header buffer and the master file's FCI: 6 and 19 bytes
+        ResponseAPDU response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, workspace, 0x100));
+        Assertions.assertEquals(0x9000, response.getSW());
+        Assertions.assertArrayEquals(new byte[] {0x00, (byte)0x80, 0x00, 0x19}, response.getData());
+
+        // Repeated commands release what they borrow
+        for (int i = 0; i < 32; i++) {
+            Assertions.assertEquals(0x9000, manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, new byte[] {(byte)0xDF, 0x20}, 0x100)).getSW());
+        }
+        response = manager.transmit(new CommandAPDU(0x00, 0xCB, 0x3F, 0x00, workspace, 0x100));
+        Assertions.assertArrayEquals(new byte[] {0x00, (byte)0x80, 0x00, 0x19}, response.getData());
+    }
 }